@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ *
+ * This file is part of Ant Kutschera's blog.
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Hash index over rules whose expression is a simple equality of an input property and a
+ * string constant, or a conjunction of such equalities, e.g.:<br>
+ * <br>
+ * &nbsp;&nbsp;&nbsp;<code>input.name == "ant" &amp;&amp; (input.gender == "male")</code><br>
+ * <br>
+ * Each such rule is filed under the constant of its first equality, so that the candidate rules for
+ * an input are found by reading each indexed property once and doing a single hash lookup per property,
+ * rather than by evaluating every rule.  The remaining equalities of a candidate are checked against
+ * the property values which were already read.<br>
+ * <br>
+ * Only properties which hold a <code>String</code> are decided by the index.  If a property holds
+ * anything else, MVEL might coerce it when comparing, so the affected rules are handed back as undecided
+ * and must be evaluated normally.
+ * @param <T> the type of the indexed entries
+ */
+final class AlphaIndex<T> {
+
+	/** the equalities of an indexable expression, as parallel lists of property paths and constants */
+	static final class Conditions {
+		private final List<String> properties = new ArrayList<String>();
+		private final List<String> values = new ArrayList<String>();
+	}
+
+	private static final class Entry<T> {
+		private final T target;
+		private final int[] slots;
+		private final String[] values;
+		private Entry(T target, int[] slots, String[] values) {
+			this.target = target;
+			this.slots = slots;
+			this.values = values;
+		}
+	}
+
+	private final String[] properties;
+	private final Serializable[] accessors;
+	/** per property slot, the entries filed under it, keyed by the constant they require */
+	private final List<Map<String, List<Entry<T>>>> entriesByValue;
+	/** per property slot, all entries filed under it */
+	private final List<List<Entry<T>>> entriesBySlot;
+
+	/**
+	 * @param indexed the entries to index, with their conditions.
+	 * @param accessorCache compiled accessors by property path, from a previous index.
+	 * 			It is added to, so that rebuilding the index after a change compiles nothing which is already known.
+	 */
+	AlphaIndex(Map<T, Conditions> indexed, String inputName, Map<String, Serializable> accessorCache) {
+		Map<String, Integer> slotsByProperty = new LinkedHashMap<String, Integer>();
+		for(Conditions c : indexed.values()){
+			for(String p : c.properties){
+				if(!slotsByProperty.containsKey(p)){
+					slotsByProperty.put(p, slotsByProperty.size());
+				}
+			}
+		}
+		int size = slotsByProperty.size();
+		properties = slotsByProperty.keySet().toArray(new String[size]);
+		accessors = new Serializable[size];
+		entriesByValue = new ArrayList<Map<String, List<Entry<T>>>>(size);
+		entriesBySlot = new ArrayList<List<Entry<T>>>(size);
+		for(int i = 0; i < size; i++){
+			Serializable accessor = accessorCache.get(properties[i]);
+			if(accessor == null){
+				accessor = MVEL.compileExpression(inputName + "." + properties[i]);
+				accessorCache.put(properties[i], accessor);
+			}
+			accessors[i] = accessor;
+			entriesByValue.add(new HashMap<String, List<Entry<T>>>());
+			entriesBySlot.add(new ArrayList<Entry<T>>());
+		}
+		for(Map.Entry<T, Conditions> e : indexed.entrySet()){
+			Conditions c = e.getValue();
+			int[] slots = new int[c.properties.size()];
+			for(int i = 0; i < slots.length; i++){
+				slots[i] = slotsByProperty.get(c.properties.get(i));
+			}
+			Entry<T> entry = new Entry<T>(e.getKey(), slots, c.values.toArray(new String[slots.length]));
+			Map<String, List<Entry<T>>> byValue = entriesByValue.get(slots[0]);
+			List<Entry<T>> list = byValue.get(entry.values[0]);
+			if(list == null){
+				list = new ArrayList<Entry<T>>(1);
+				byValue.put(entry.values[0], list);
+			}
+			list.add(entry);
+			entriesBySlot.get(slots[0]).add(entry);
+		}
+	}
+
+	/** @return the number of distinct properties which the index reads */
+	int getPropertyCount() {
+		return properties.length;
+	}
+
+	/**
+	 * Finds the indexed entries which match the input.
+	 * @param vars the variables, as used by MVEL when evaluating rules.
+	 * @param values scratch space for the property values, at least {@link #getPropertyCount()} long.
+	 * @param decidable scratch space, at least {@link #getPropertyCount()} long.
+	 * @param matches filled with the entries whose conditions are all true.
+	 * @param undecided filled with the entries which the index cannot decide, because a property they
+	 * 			depend on does not hold a string, or could not be read.
+	 */
+	void match(VariableResolverFactory vars, Object[] values, boolean[] decidable, List<T> matches, List<T> undecided) {
+		for(int i = 0; i < properties.length; i++){
+			try{
+				values[i] = MVEL.executeExpression(accessors[i], vars);
+				decidable[i] = values[i] == null || values[i] instanceof String;
+			}catch(RuntimeException e){
+				//let the rules themselves fail, or not, exactly as they would without an index
+				values[i] = null;
+				decidable[i] = false;
+			}
+		}
+		for(int i = 0; i < properties.length; i++){
+			List<Entry<T>> candidates;
+			if(!decidable[i]){
+				candidates = entriesBySlot.get(i);
+			}else if(values[i] == null){
+				continue;
+			}else{
+				candidates = entriesByValue.get(i).get(values[i]);
+				if(candidates == null){
+					continue;
+				}
+			}
+			for(int j = 0; j < candidates.size(); j++){
+				check(candidates.get(j), values, decidable, matches, undecided);
+			}
+		}
+	}
+
+	private void check(Entry<T> e, Object[] values, boolean[] decidable, List<T> matches, List<T> undecided) {
+		boolean decided = true;
+		for(int j = 0; j < e.slots.length; j++){
+			int slot = e.slots[j];
+			if(!decidable[slot]){
+				decided = false;
+			}else if(!e.values[j].equals(values[slot])){
+				return;
+			}
+		}
+		if(decided){
+			matches.add(e.target);
+		}else{
+			undecided.add(e.target);
+		}
+	}
+
+	/**
+	 * @return the conditions if the expression is a conjunction of equalities between input properties
+	 * 			and string constants, otherwise null.
+	 */
+	static Conditions analyse(String expression, String inputName) {
+		Parser p = new Parser(expression, inputName);
+		if(p.conjunction() && p.atEnd()){
+			return p.conditions;
+		}
+		return null;
+	}
+
+	/** a recursive descent parser for the tiny subset of the expression language which can be indexed */
+	private static final class Parser {
+		private final String s;
+		private final String inputName;
+		private final Conditions conditions = new Conditions();
+		private int pos;
+
+		private Parser(String s, String inputName) {
+			this.s = s;
+			this.inputName = inputName;
+		}
+
+		private boolean conjunction() {
+			do{
+				if(!term()){
+					return false;
+				}
+			}while(consume("&&"));
+			return true;
+		}
+
+		private boolean term() {
+			if(consume("(")){
+				return conjunction() && consume(")");
+			}
+			String property, value = literal();
+			if(value != null){
+				if(!consume("==") || (property = property()) == null){
+					return false;
+				}
+			}else{
+				property = property();
+				if(property == null || !consume("==") || (value = literal()) == null){
+					return false;
+				}
+			}
+			conditions.properties.add(property);
+			conditions.values.add(value);
+			return true;
+		}
+
+		/** @return the property path after the input name, e.g. "person.name" for "input.person.name" */
+		private String property() {
+			skipWhitespace();
+			if(!s.startsWith(inputName + ".", pos)){
+				return null;
+			}
+			pos += inputName.length();
+			int start = pos + 1;
+			while(pos < s.length() && s.charAt(pos) == '.'){
+				pos++;
+				if(pos >= s.length() || !Character.isJavaIdentifierStart(s.charAt(pos))){
+					return null;
+				}
+				while(pos < s.length() && Character.isJavaIdentifierPart(s.charAt(pos))){
+					pos++;
+				}
+			}
+			String property = s.substring(start, pos);
+			skipWhitespace();
+			if(pos < s.length() && (s.charAt(pos) == '(' || s.charAt(pos) == '[')){
+				//method calls and indexed access are left to MVEL
+				return null;
+			}
+			return property;
+		}
+
+		private String literal() {
+			skipWhitespace();
+			if(pos >= s.length() || (s.charAt(pos) != '"' && s.charAt(pos) != '\'')){
+				return null;
+			}
+			char quote = s.charAt(pos);
+			int end = s.indexOf(quote, pos + 1);
+			if(end < 0){
+				return null;
+			}
+			String value = s.substring(pos + 1, end);
+			if(value.indexOf('\\') > -1){
+				//escapes are left to MVEL
+				return null;
+			}
+			pos = end + 1;
+			return value;
+		}
+
+		private boolean consume(String token) {
+			skipWhitespace();
+			if(s.startsWith(token, pos)){
+				if("==".equals(token) && s.startsWith("=", pos + 2)){
+					return false;
+				}
+				pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private boolean atEnd() {
+			skipWhitespace();
+			return pos == s.length();
+		}
+
+		private void skipWhitespace() {
+			while(pos < s.length() && Character.isWhitespace(s.charAt(pos))){
+				pos++;
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ *
+ * This file is part of Ant Kutschera's blog.
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Directory of compiled rule artifacts, so that an engine which is started with the same rules as before
+ * loads what it compiled last time, rather than compiling it again.  The artifacts of a rule set are stored
+ * in one file, named after the SHA-256 hash of everything which influences compilation, see {@link #key}.
+ * A rule set which changed in any way therefore simply misses the cache.<br>
+ * <br>
+ * The cache is an optimisation only: a file which cannot be read, or an artifact which cannot be loaded,
+ * is logged and compiled as if there were no cache.<br>
+ * <br>
+ * Since anyone able to write to the directory could otherwise have arbitrary classes deserialized, only the
+ * classes of this library, of MVEL and of java.lang, java.util and java.math are read, see {@link #isAllowed}.
+ * Anything else fails to load and is therefore compiled.
+ */
+final class ArtifactCache {
+
+	private static final Logger log = Logger.getLogger(ArtifactCache.class.getName());
+
+	/** changes whenever the format of the artifacts changes, so that old files are ignored */
+	private static final int FORMAT = 1;
+
+	private static final String SUFFIX = ".artifacts";
+
+	/** what an engine compiled from a rule set */
+	static final class Artifacts implements Serializable {
+		private static final long serialVersionUID = 1L;
+		/** per rule, its expression with subrules expanded */
+		final Map<String, String> expansions = new HashMap<String, String>();
+		/** per rule, the subrules it references, directly or indirectly */
+		final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+		/** serialized compiled expressions, by the expression which was compiled */
+		final Map<String, byte[]> expressions = new HashMap<String, byte[]>();
+		/** classes generated by the {@link BytecodeCompiler}, by the expression which was translated */
+		final Map<String, BytecodeCompiler.GeneratedClass> classes = new HashMap<String, BytecodeCompiler.GeneratedClass>();
+	}
+
+	private final File directory;
+
+	ArtifactCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param engine the type of engine, since subclasses may compile differently.
+	 * @param inputType the type of input rules are compiled for, or null.  Its properties are part of the key,
+	 * 			so that generated code is never loaded against a type which changed.
+	 * @return the hash which identifies the rule set, given in the order in which it is passed to the engine.
+	 */
+	static String key(Class<?> engine, Engine.Backend backend, String inputName, Class<?> inputType, Collection<Rule> rules) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(FORMAT).append('\n').append(engine.getName()).append('\n').append(backend).append('\n').append(inputName).append('\n');
+		sb.append(System.getProperty("java.specification.version")).append('\n');
+		sb.append(org.mvel2.MVEL.class.getPackage() == null ? null : org.mvel2.MVEL.class.getPackage().getImplementationVersion()).append('\n');
+		if(inputType != null){
+			describe(inputType, sb, new HashSet<Class<?>>());
+		}
+		for(Rule r : rules){
+			//lengths delimit the strings, so that no two different rule sets produce the same description
+			append(sb, r.getFullyQualifiedName());
+			append(sb, r.getExpression());
+			append(sb, r.getOutcome());
+			sb.append(r.getPriority()).append(r instanceof SubRule ? 'S' : 'R').append('\n');
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : hash){
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is required to be available", e);
+		}
+	}
+
+	private static void append(StringBuilder sb, String s) {
+		if(s == null){
+			sb.append("-1:");
+		}else{
+			sb.append(s.length()).append(':').append(s);
+		}
+	}
+
+	/** appends the public methods of the type, and of the types they return, which generated code might call */
+	private static void describe(Class<?> type, StringBuilder sb, Set<Class<?>> described) {
+		if(type.isPrimitive() || type.isArray() || type.getName().startsWith("java.") || !described.add(type)){
+			return;
+		}
+		List<String> signatures = new ArrayList<String>();
+		List<Class<?>> returned = new ArrayList<Class<?>>();
+		for(Method m : type.getMethods()){
+			if(m.getParameterTypes().length == 0){
+				signatures.add(m.toGenericString());
+				returned.add(m.getReturnType());
+			}
+		}
+		for(java.lang.reflect.Field f : type.getFields()){
+			signatures.add(f.toGenericString());
+			returned.add(f.getType());
+		}
+		Collections.sort(signatures);
+		sb.append(type.getName()).append(signatures).append('\n');
+		for(Class<?> r : returned){
+			describe(r, sb, described);
+		}
+	}
+
+	/** @return the artifacts stored under the key, or null if there are none, or they cannot be read. */
+	Artifacts load(String key) {
+		File file = new File(directory, key + SUFFIX);
+		if(!file.isFile()){
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		try{
+			ObjectInputStream in = new RestrictedObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try{
+				Artifacts artifacts = (Artifacts) in.readObject();
+				log.info("loaded compiled artifacts from " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+				return artifacts;
+			}finally{
+				in.close();
+			}
+		}catch(Exception e){
+			log.warning("Failed to load compiled artifacts from " + file + ", rules will be compiled: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the artifacts under the key.  The file is written under a temporary name and then renamed,
+	 * so that concurrently starting engines never read a partial file.  Failures are only logged.
+	 */
+	void store(String key, Artifacts artifacts) {
+		File file = new File(directory, key + SUFFIX);
+		try{
+			if(!directory.isDirectory() && !directory.mkdirs()){
+				throw new IOException("Could not create directory " + directory);
+			}
+			File temp = File.createTempFile(key, ".tmp", directory);
+			try{
+				ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+				try{
+					out.writeObject(artifacts);
+				}finally{
+					out.close();
+				}
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}finally{
+				temp.delete();
+			}
+			log.info("stored compiled artifacts in " + file);
+		}catch(IOException e){
+			log.warning("Failed to store compiled artifacts in " + file + ": " + e);
+		}
+	}
+
+	/** @return the serialized form of the compiled expression, or null if it cannot be serialized. */
+	static byte[] serialize(Serializable compiled) {
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(compiled);
+			out.close();
+			return bytes.toByteArray();
+		}catch(IOException e){
+			log.fine("compiled expression cannot be cached: " + e);
+			return null;
+		}
+	}
+
+	/** @return the compiled expression, or null if it cannot be deserialized. */
+	static Serializable deserialize(byte[] bytes) {
+		try{
+			ObjectInputStream in = new RestrictedObjectInputStream(new ByteArrayInputStream(bytes));
+			return (Serializable) in.readObject();
+		}catch(Exception e){
+			log.fine("cached compiled expression cannot be loaded: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if instances of the class may be read from the cache, i.e. it belongs to this library
+	 * 			or MVEL, or directly to java.lang, java.util or java.math, or it is an array of such classes or of primitives.
+	 */
+	static boolean isAllowed(String name) {
+		int dimensions = 0;
+		while(dimensions < name.length() && name.charAt(dimensions) == '['){
+			dimensions++;
+		}
+		if(dimensions == name.length()){
+			return false;
+		}
+		if(dimensions > 0){
+			//e.g. [B or [Ljava.lang.String;
+			if(name.charAt(dimensions) != 'L'){
+				return name.length() == dimensions + 1;
+			}
+			name = name.substring(dimensions + 1, name.length() - 1);
+		}
+		if(name.startsWith("ch.maxant.rules.") || name.startsWith("org.mvel2.")){
+			return true;
+		}
+		int dot = name.lastIndexOf('.');
+		String pkg = dot < 0 ? "" : name.substring(0, dot);
+		return pkg.equals("java.lang") || pkg.equals("java.util") || pkg.equals("java.math");
+	}
+
+	/** reads only allowed classes, resolved against this library, and thus MVEL, rather than whatever loader is on the stack */
+	private static final class RestrictedObjectInputStream extends ObjectInputStream {
+		private RestrictedObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			if(!isAllowed(desc.getName())){
+				throw new InvalidClassException(desc.getName(), "not allowed in the artifact cache");
+			}
+			try{
+				return Class.forName(desc.getName(), false, ArtifactCache.class.getClassLoader());
+			}catch(ClassNotFoundException e){
+				return super.resolveClass(desc);
+			}
+		}
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+			throw new InvalidClassException("proxy classes are not allowed in the artifact cache");
+		}
+	}
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ *
+ * This file is part of Ant Kutschera's blog.
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Compiles rule expressions into Java classes implementing {@link RulePredicate}, so that the JIT can
+ * inline property access and comparisons, rather than MVEL interpreting or reflectively optimising them.<br>
+ * <br>
+ * Expressions are translated into Java source, which is compiled in memory using the system Java compiler.
+ * Property access is resolved at translation time against the input type, which must therefore be known.
+ * Only a statically typed subset of the expression language is translated: paths of bean properties or public
+ * fields starting at the input, string, number, boolean and null literals, the comparison operators and the
+ * operators <code>&amp;&amp;</code>, <code>||</code> and <code>!</code> on booleans.  Equality is only translated
+ * where it means the same as in MVEL, i.e. between strings, between primitive numbers, between primitive booleans
+ * and against null.  Any expression outside of that subset is left to MVEL.
+ */
+final class BytecodeCompiler {
+
+	private static final Logger log = Logger.getLogger(BytecodeCompiler.class.getName());
+
+	private static final String PACKAGE = "ch.maxant.rules.generated";
+
+	/** the name of the typed input variable in generated code */
+	private static final String VARIABLE = "in";
+
+	private static final AtomicLong CLASS_COUNTER = new AtomicLong();
+
+	private final Class<?> inputType;
+	private final String inputName;
+
+	/** a class generated for an expression, as kept by the {@link ArtifactCache} */
+	static final class GeneratedClass implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+		private final byte[] bytes;
+		private GeneratedClass(String name, byte[] bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+	}
+
+	BytecodeCompiler(Class<?> inputType, String inputName) {
+		this.inputType = inputType;
+		this.inputName = inputName;
+	}
+
+	/**
+	 * @return one predicate per expression, or null where an expression could not be translated or compiled.
+	 */
+	List<RulePredicate<Object>> compile(List<String> expressions) {
+		return compile(expressions, new HashMap<String, GeneratedClass>());
+	}
+
+	/**
+	 * @param generated classes which were generated before, by expression.  Expressions found in it are not 
+	 * 			compiled again, and the classes of all others which compiled are added to it.
+	 * @return one predicate per expression, or null where an expression could not be translated or compiled.
+	 */
+	List<RulePredicate<Object>> compile(List<String> expressions, Map<String, GeneratedClass> generated) {
+		List<RulePredicate<Object>> predicates = new ArrayList<RulePredicate<Object>>(Collections.<RulePredicate<Object>>nCopies(expressions.size(), null));
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if(javac == null){
+			log.warning("No Java compiler is available, probably because this is not a JDK. All rules will be evaluated using MVEL.");
+			return predicates;
+		}
+		if(!isAccessible(inputType) || inputType.getCanonicalName() == null || inputType.getName().indexOf('.') < 0){
+			log.warning("The input type " + inputType + " cannot be used in generated code, since it is not public or not in a package. All rules will be evaluated using MVEL.");
+			return predicates;
+		}
+
+		Map<Source, Integer> sources = new LinkedHashMap<Source, Integer>();
+		Map<String, byte[]> loaded = new HashMap<String, byte[]>();
+		Map<Integer, String> loadedNames = new LinkedHashMap<Integer, String>();
+		for(int i = 0; i < expressions.size(); i++){
+			GeneratedClass g = generated.get(expressions.get(i));
+			if(g != null){
+				loaded.put(PACKAGE + "." + g.name, g.bytes);
+				loadedNames.put(i, PACKAGE + "." + g.name);
+				continue;
+			}
+			String code = translate(expressions.get(i));
+			if(code != null){
+				String className = "Rule" + CLASS_COUNTER.incrementAndGet();
+				sources.put(new Source(className, generate(className, code)), i);
+			}
+		}
+		if(!loaded.isEmpty()){
+			//cached classes were generated by an earlier run, whose class names may clash with new ones, so they get their own loader
+			load(loaded, loadedNames, expressions, predicates);
+		}
+		if(sources.isEmpty()){
+			return predicates;
+		}
+
+		long start = System.currentTimeMillis();
+		Map<String, byte[]> classes = compile(javac, sources.keySet());
+		Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+		for(Map.Entry<Source, Integer> e : sources.entrySet()){
+			String className = PACKAGE + "." + e.getKey().className;
+			if(classes.containsKey(className)){
+				names.put(e.getValue(), className);
+				generated.put(expressions.get(e.getValue()), new GeneratedClass(e.getKey().className, classes.get(className)));
+			}
+		}
+		load(classes, names, expressions, predicates);
+		log.info("compiled " + classes.size() + " of " + expressions.size() + " rules to bytecode in " + (System.currentTimeMillis()-start) + " ms");
+		return predicates;
+	}
+
+	/**
+	 * loads the classes and sets an instance of each as the predicate at the index of its expression
+	 * @param names the class name by index of the expression
+	 */
+	private void load(Map<String, byte[]> classes, Map<Integer, String> names, List<String> expressions, List<RulePredicate<Object>> predicates) {
+		ClassLoader loader = new GeneratedClassLoader(inputType.getClassLoader() == null ? getClass().getClassLoader() : inputType.getClassLoader(), classes);
+		for(Map.Entry<Integer, String> e : names.entrySet()){
+			try {
+				@SuppressWarnings("unchecked")
+				RulePredicate<Object> predicate = (RulePredicate<Object>) loader.loadClass(e.getValue()).getDeclaredConstructor().newInstance();
+				predicates.set(e.getKey(), predicate);
+			} catch (Exception ex) {
+				log.warning("Failed to load generated class for " + expressions.get(e.getKey()) + ": " + ex.getMessage());
+			} catch (LinkageError ex) {
+				log.warning("Failed to load generated class for " + expressions.get(e.getKey()) + ": " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Compiles all sources in one go.  Sources with errors are dropped and the rest are compiled again,
+	 * so that one unexpected error does not prevent the other rules from being compiled.
+	 */
+	private Map<String, byte[]> compile(JavaCompiler javac, Collection<Source> sources) {
+		List<Source> remaining = new ArrayList<Source>(sources);
+		for(int attempt = 0; attempt < 2 && !remaining.isEmpty(); attempt++){
+			DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+			final Map<String, ByteArrayOutputStream> output = new HashMap<String, ByteArrayOutputStream>();
+			JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(javac.getStandardFileManager(diagnostics, null, null)) {
+				@Override
+				public JavaFileObject getJavaFileForOutput(Location location, final String className, JavaFileObject.Kind kind, FileObject sibling) {
+					return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+						@Override
+						public OutputStream openOutputStream() {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							output.put(className, out);
+							return out;
+						}
+					};
+				}
+			};
+			List<String> options = Arrays.asList("-classpath", classpath(), "-proc:none", "-g:none", "-nowarn");
+			if(javac.getTask(null, fileManager, diagnostics, options, null, remaining).call()){
+				Map<String, byte[]> classes = new HashMap<String, byte[]>();
+				for(Map.Entry<String, ByteArrayOutputStream> e : output.entrySet()){
+					classes.put(e.getKey(), e.getValue().toByteArray());
+				}
+				return classes;
+			}
+			for(Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()){
+				if(d.getKind() == Diagnostic.Kind.ERROR){
+					log.warning("Failed to compile generated rule class, it will be evaluated using MVEL: " + d.getMessage(null));
+					remaining.remove(d.getSource());
+				}
+			}
+		}
+		return Collections.emptyMap();
+	}
+
+	/** the class path of the application, plus wherever the input type and this library were loaded from */
+	private String classpath() {
+		Set<String> entries = new LinkedHashSet<String>();
+		for(Class<?> c : new Class<?>[]{inputType, RulePredicate.class}){
+			try{
+				entries.add(new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+			}catch(Exception e){
+				//not loaded from a file, e.g. the bootstrap classpath
+			}
+		}
+		entries.add(System.getProperty("java.class.path"));
+		StringBuilder sb = new StringBuilder();
+		for(String e : entries){
+			if(sb.length() > 0){
+				sb.append(File.pathSeparator);
+			}
+			sb.append(e);
+		}
+		return sb.toString();
+	}
+
+	private String generate(String className, String code) {
+		String type = inputType.getCanonicalName();
+		return "package " + PACKAGE + ";\n"
+			+ "public final class " + className + " implements " + RulePredicate.class.getName() + "<Object> {\n"
+			+ "\tpublic boolean test(Object input) {\n"
+			+ "\t\tfinal " + type + " " + VARIABLE + " = (" + type + ") input;\n"
+			+ "\t\treturn " + code + ";\n"
+			+ "\t}\n"
+			+ "}\n";
+	}
+
+	/**
+	 * @return the expression as Java source, or null if it is outside of the subset which can be translated.
+	 */
+	String translate(String expression) {
+		try{
+			Translator t = new Translator(expression);
+			Node n = t.or();
+			if(t.token != null || n.type != boolean.class){
+				return null;
+			}
+			return n.code;
+		}catch(UntranslatableException e){
+			return null;
+		}
+	}
+
+	private static boolean isAccessible(Class<?> c) {
+		for(; c != null; c = c.getEnclosingClass()){
+			if(!Modifier.isPublic(c.getModifiers())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNumber(Class<?> c) {
+		return c == int.class || c == long.class || c == double.class || c == float.class || c == short.class || c == byte.class;
+	}
+
+	private static final class UntranslatableException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** a translated part of an expression.  the type of a null literal is null. */
+	private static final class Node {
+		private final String code;
+		private final Class<?> type;
+		private Node(String code, Class<?> type) {
+			this.code = code;
+			this.type = type;
+		}
+	}
+
+	/** a recursive descent translator, which reads one token ahead */
+	private final class Translator {
+		private final String s;
+		private int pos;
+		private String token;
+
+		private Translator(String s) throws UntranslatableException {
+			this.s = s;
+			next();
+		}
+
+		private Node or() throws UntranslatableException {
+			Node left = and();
+			while("||".equals(token)){
+				next();
+				left = new Node("(" + bool(left) + " || " + bool(and()) + ")", boolean.class);
+			}
+			return left;
+		}
+
+		private Node and() throws UntranslatableException {
+			Node left = unary();
+			while("&&".equals(token)){
+				next();
+				left = new Node("(" + bool(left) + " && " + bool(unary()) + ")", boolean.class);
+			}
+			return left;
+		}
+
+		private Node unary() throws UntranslatableException {
+			if("!".equals(token)){
+				next();
+				return new Node("!" + bool(unary()), boolean.class);
+			}
+			return comparison();
+		}
+
+		private Node comparison() throws UntranslatableException {
+			Node left = operand();
+			String op = token;
+			if(!"==".equals(op) && !"!=".equals(op) && !"<".equals(op) && !">".equals(op) && !"<=".equals(op) && !">=".equals(op)){
+				return left;
+			}
+			next();
+			Node right = operand();
+			boolean equality = "==".equals(op) || "!=".equals(op);
+			if(isNumber(left.type) && isNumber(right.type)){
+				return new Node("(" + left.code + " " + op + " " + right.code + ")", boolean.class);
+			}else if(!equality){
+				throw new UntranslatableException();
+			}else if(left.type == boolean.class && right.type == boolean.class){
+				return new Node("(" + left.code + " " + op + " " + right.code + ")", boolean.class);
+			}else if((left.type == null && right.type != null && !right.type.isPrimitive()) || (right.type == null && left.type != null && !left.type.isPrimitive())){
+				return new Node("(" + left.code + " " + op + " " + right.code + ")", boolean.class);
+			}else if(left.type == String.class && right.type == String.class){
+				return new Node(("!=".equals(op) ? "!" : "") + "java.util.Objects.equals(" + left.code + ", " + right.code + ")", boolean.class);
+			}
+			//anything else would need MVELs coercion rules
+			throw new UntranslatableException();
+		}
+
+		private Node operand() throws UntranslatableException {
+			String t = token;
+			if(t == null){
+				throw new UntranslatableException();
+			}
+			next();
+			if("(".equals(t)){
+				Node n = or();
+				if(!")".equals(token)){
+					throw new UntranslatableException();
+				}
+				next();
+				return new Node("(" + n.code + ")", n.type);
+			}
+			char c = t.charAt(0);
+			if(c == '"' || c == '\''){
+				String value = t.substring(1, t.length() - 1);
+				if(value.indexOf('"') > -1 || value.indexOf('\\') > -1){
+					throw new UntranslatableException();
+				}
+				return new Node("\"" + value + "\"", String.class);
+			}
+			if(Character.isDigit(c)){
+				if(t.indexOf('.') > -1){
+					return new Node(t + "d", double.class);
+				}
+				try{
+					Integer.parseInt(t);
+					return new Node(t, int.class);
+				}catch(NumberFormatException e){
+					//beyond long range MVEL promotes the literal, so leave the rule to MVEL
+					try{
+						Long.parseLong(t);
+					}catch(NumberFormatException ex){
+						throw new UntranslatableException();
+					}
+					return new Node(t + "L", long.class);
+				}
+			}
+			if("true".equals(t) || "false".equals(t)){
+				return new Node(t, boolean.class);
+			}
+			if("null".equals(t)){
+				return new Node("null", null);
+			}
+			if(Character.isJavaIdentifierStart(c)){
+				return path(t);
+			}
+			throw new UntranslatableException();
+		}
+
+		/** resolves a path like input.person.name into getter calls, using the static types */
+		private Node path(String path) throws UntranslatableException {
+			String[] segments = path.split("\\.", -1);
+			if(segments.length < 2 || !segments[0].equals(inputName) || "(".equals(token) || "[".equals(token)){
+				throw new UntranslatableException();
+			}
+			StringBuilder code = new StringBuilder(VARIABLE);
+			Class<?> type = inputType;
+			for(int i = 1; i < segments.length; i++){
+				String property = segments[i];
+				if(property.isEmpty() || type.isPrimitive() || !isAccessible(type)){
+					throw new UntranslatableException();
+				}
+				String capitalised = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+				Method getter = method(type, "get" + capitalised);
+				if(getter == null){
+					getter = method(type, "is" + capitalised);
+					if(getter != null && getter.getReturnType() != boolean.class){
+						getter = null;
+					}
+				}
+				if(getter != null){
+					code.append('.').append(getter.getName()).append("()");
+					type = getter.getReturnType();
+				}else{
+					try{
+						Field f = type.getField(property);
+						if(Modifier.isStatic(f.getModifiers())){
+							throw new UntranslatableException();
+						}
+						code.append('.').append(f.getName());
+						type = f.getType();
+					}catch(NoSuchFieldException e){
+						throw new UntranslatableException();
+					}
+				}
+			}
+			return new Node(code.toString(), type);
+		}
+
+		private Method method(Class<?> type, String name) {
+			try{
+				Method m = type.getMethod(name);
+				return Modifier.isStatic(m.getModifiers()) || m.getReturnType() == void.class ? null : m;
+			}catch(NoSuchMethodException e){
+				return null;
+			}
+		}
+
+		private String bool(Node n) throws UntranslatableException {
+			if(n.type != boolean.class){
+				throw new UntranslatableException();
+			}
+			return n.code;
+		}
+
+		private void next() throws UntranslatableException {
+			while(pos < s.length() && Character.isWhitespace(s.charAt(pos))){
+				pos++;
+			}
+			if(pos >= s.length()){
+				token = null;
+				return;
+			}
+			int start = pos;
+			char c = s.charAt(pos);
+			if(c == '"' || c == '\''){
+				int end = s.indexOf(c, pos + 1);
+				if(end < 0){
+					throw new UntranslatableException();
+				}
+				pos = end + 1;
+			}else if(Character.isDigit(c)){
+				while(pos < s.length() && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.')){
+					pos++;
+				}
+				if(pos < s.length() && Character.isJavaIdentifierPart(s.charAt(pos))){
+					//suffixes like 10L or 1.5f
+					throw new UntranslatableException();
+				}
+			}else if(Character.isJavaIdentifierStart(c)){
+				while(pos < s.length() && (Character.isJavaIdentifierPart(s.charAt(pos)) || s.charAt(pos) == '.')){
+					pos++;
+				}
+			}else if(s.startsWith("&&", pos) || s.startsWith("||", pos) || s.startsWith("==", pos) || s.startsWith("!=", pos) || s.startsWith("<=", pos) || s.startsWith(">=", pos)){
+				pos += 2;
+				if(pos < s.length() && s.charAt(pos) == '='){
+					throw new UntranslatableException();
+				}
+			}else if("!<>()[".indexOf(c) > -1){
+				pos++;
+			}else{
+				throw new UntranslatableException();
+			}
+			token = s.substring(start, pos);
+		}
+	}
+
+	private static final class Source extends SimpleJavaFileObject {
+		private final String className;
+		private final String code;
+		private Source(String className, String code) {
+			super(URI.create("string:///" + PACKAGE.replace('.', '/') + "/" + className + Kind.SOURCE.extension), Kind.SOURCE);
+			this.className = className;
+			this.code = code;
+		}
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return code;
+		}
+	}
+
+	/** defines the generated classes.  once the rules using them are gone, the loader and its classes can be collected */
+	private static final class GeneratedClassLoader extends ClassLoader {
+		private final Map<String, byte[]> classes;
+		private GeneratedClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+			super(parent);
+			this.classes = classes;
+		}
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if(bytes == null){
+				throw new ClassNotFoundException(name);
+			}
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
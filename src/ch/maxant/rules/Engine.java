@@ -18,12 +18,22 @@
 package ch.maxant.rules;
 
 import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * A Rule Engine.  Can evaluate rules and execute {@link IAction}s or simply provide an 
@@ -95,14 +105,63 @@ public class Engine {
 	/** the name which scripts should use for the input, unless overriden in the constructor/builder. */
 	public static final String DEFAULT_INPUT_NAME = "input";
 
+	/** how rules which the alpha index cannot decide are evaluated */
+	public enum Backend {
+		/** rules are compiled and evaluated by MVEL.  the default. */
+		MVEL,
+		/** 
+		 * rules are compiled to Java classes, which the JIT can optimise like any other code.  Requires the type of
+		 * the input to be known in advance and a JDK at runtime.  Rules which cannot be translated, because they use
+		 * more than simple property paths, literals, comparisons and boolean operators, and inputs of any other type
+		 * are still evaluated by MVEL.  Compilation takes longer, so this pays off for long lived engines evaluating
+		 * many inputs.
+		 */
+		BYTECODE
+	}
+
 	private static final Logger log = Logger.getLogger(Engine.class.getName());
 	
-	private List<CompiledRule> rules;
-	protected final Set<String> uniqueOutcomes = new HashSet<String>();
-	protected List<Rule> parsedRules;
+	private volatile CompiledRuleSet compiledRules;
+	/** compiled property accessors of the alpha index, by property path, so that rebuilding the index compiles nothing twice */
+	private final Map<String, Serializable> accessors = new ConcurrentHashMap<String, Serializable>();
+	private final ThreadLocal<EvaluationContext> contexts = new ThreadLocal<EvaluationContext>(){
+		@Override
+		protected EvaluationContext initialValue() {
+			return new EvaluationContext();
+		}
+	};
+	protected final Set<String> uniqueOutcomes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	protected volatile List<Rule> parsedRules;
+
+	/** the rules as supplied by the caller, keyed by fully qualified name. needed to apply incremental changes. */
+	private Map<String, Rule> definitions;
+	/** per rule, the fully qualified names of all subrules it references, directly or indirectly. */
+	private Map<String, Set<String>> subruleReferences;
+	/** 
+	 * per subrule, the slot which holds its result during an evaluation.  Slots are never reused, so that
+	 * compiled rules which reference a subrule remain valid while other subrules are added or removed.
+	 */
+	private final Map<String, Integer> subruleSlots = new HashMap<String, Integer>();
+	
+	/** the prefix of the variables which rules use to read the results of subrules, followed by the slot of the subrule */
+	private static final String SUBRULE_VARIABLE_PREFIX = "__subrule";
 
 	protected final boolean throwExceptionIfCompilationFails;
 	protected final String inputName;
+	protected final Backend backend;
+	/** the type of input which rules are compiled for, if the backend is {@link Backend#BYTECODE} */
+	protected final Class<?> inputType;
+	/** evaluates chunks of rules in parallel, or null if rules are always evaluated on the callers thread */
+	protected final ExecutorService parallelExecutor;
+	/** the minimum number of rules to evaluate, before they are evaluated in parallel */
+	protected final int parallelThreshold;
+	/** where compiled rules are kept across restarts, or null */
+	private final ArtifactCache artifactCache;
+	/** 
+	 * during initialisation only, the artifacts loaded from the cache, which are also filled with everything compiled, 
+	 * or null if there is no cache.
+	 */
+	private ArtifactCache.Artifacts artifacts;
 	
 	//reserved for subclasses and not used in this class - yuck, but hey.
 	protected final String[] javascriptFilesToLoad;
@@ -128,120 +187,625 @@ public class Engine {
 	}
 	
 	protected Engine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Integer poolSize, String[] javascriptFilesToLoad) throws DuplicateNameException, CompileException, ParseException {
+		this(rules, inputName, throwExceptionIfCompilationFails, poolSize, javascriptFilesToLoad, Backend.MVEL, null, null, 0);
+	}
+	
+	protected Engine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Integer poolSize, String[] javascriptFilesToLoad, Backend backend, Class<?> inputType, ExecutorService parallelExecutor, int parallelThreshold) throws DuplicateNameException, CompileException, ParseException {
+		this(rules, inputName, throwExceptionIfCompilationFails, poolSize, javascriptFilesToLoad, backend, inputType, parallelExecutor, parallelThreshold, null);
+	}
+	
+	protected Engine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Integer poolSize, String[] javascriptFilesToLoad, Backend backend, Class<?> inputType, ExecutorService parallelExecutor, int parallelThreshold, File artifactCacheDirectory) throws DuplicateNameException, CompileException, ParseException {
+		if(backend == Backend.BYTECODE && inputType == null){
+			throw new IllegalArgumentException("The bytecode backend requires the input type");
+		}
 		this.inputName = inputName;
 		this.throwExceptionIfCompilationFails = throwExceptionIfCompilationFails;
 		this.javascriptFilesToLoad = javascriptFilesToLoad;
 		this.poolSize = poolSize;
+		this.backend = backend;
+		this.inputType = inputType;
+		this.parallelExecutor = parallelExecutor;
+		this.parallelThreshold = parallelThreshold;
+		this.artifactCache = artifactCacheDirectory == null ? null : new ArtifactCache(artifactCacheDirectory);
 		init(rules);
 	}
 	
+	/** see {@link #copy()} */
+	private Engine(Engine other) {
+		this.inputName = other.inputName;
+		this.throwExceptionIfCompilationFails = other.throwExceptionIfCompilationFails;
+		this.javascriptFilesToLoad = other.javascriptFilesToLoad;
+		this.poolSize = other.poolSize;
+		this.backend = other.backend;
+		this.inputType = other.inputType;
+		this.parallelExecutor = other.parallelExecutor;
+		this.parallelThreshold = other.parallelThreshold;
+		this.artifactCache = other.artifactCache;
+		//incremental changes replace these rather than modifying them, so they can be shared
+		this.definitions = other.definitions;
+		this.subruleReferences = other.subruleReferences;
+		this.parsedRules = other.parsedRules;
+		this.compiledRules = other.compiledRules;
+		//these are modified in place, so each engine gets its own
+		this.subruleSlots.putAll(other.subruleSlots);
+		this.accessors.putAll(other.accessors);
+		this.uniqueOutcomes.addAll(other.uniqueOutcomes);
+	}
+	
+	/**
+	 * Creates an engine with the same rules and configuration, sharing everything that was compiled, so nothing is compiled again.
+	 * Incremental changes to the copy leave this engine untouched, so the next version of a rule set can be prepared while 
+	 * the current one is still being evaluated, and a version which was handed out never changes.
+	 * @throws UnsupportedOperationException if this is a subclass, since subclasses hold state of their own.
+	 */
+	public synchronized Engine copy() {
+		if(getClass() != Engine.class){
+			throw new UnsupportedOperationException(getClass().getName() + " cannot be copied");
+		}
+		return new Engine(this);
+	}
+	
 	/** handles the initialisation */
 	protected void init(Collection<Rule> rules) throws DuplicateNameException, CompileException, ParseException {
 		log.info("\r\n\r\n*****Initialising rule engine...*****");
-		this.rules = new ArrayList<CompiledRule>();
 		long start = System.currentTimeMillis();
-		Map<String, Rule> names = new HashMap<String, Rule>();
+		Map<String, Rule> names = new LinkedHashMap<String, Rule>();
 		for(Rule r : rules){
 			String fullyQualifiedName = r.getFullyQualifiedName();
 			if(names.containsKey(fullyQualifiedName)){
 				throw new DuplicateNameException("The name " + fullyQualifiedName + " was found in a different rule.");
 			}
 			names.put(r.getFullyQualifiedName(), r);
-		    uniqueOutcomes.add(r.getOutcome());
+			//n.b. subrules have outcome == null
+			if(r.getOutcome() != null){
+				uniqueOutcomes.add(r.getOutcome());
+			}
 		}
 		
-		parsedRules = new ArrayList<Rule>();
+		String key = null;
+		ArtifactCache.Artifacts cached = null;
+		if(artifactCache != null){
+			key = ArtifactCache.key(getClass(), backend, inputName, inputType, rules);
+			cached = artifactCache.load(key);
+			artifacts = cached == null ? new ArtifactCache.Artifacts() : cached;
+		}
 		
 		//now replace all rule references with the actual rule, contained within brackets
-		while(true){
-			boolean foundRuleReference = false;
-			for(Rule r : rules){
-				int idx1 = r.getExpression().indexOf('#');
-                if(idx1 > -1){
-					foundRuleReference = true;
-
-					//search to end of expression for next symbol
-					int idx2 = idx1 + 1; //to skip #
-					while(true){
-						idx2++;
-						if(idx2 >= r.getExpression().length()){
-							break;
-						}
-						char c = r.getExpression().charAt(idx2);
-						if(
-								c == ' ' || c == '&' || 
-								c == '|' || c == '.' || 
-								c == '(' || c == ')' || 
-								c == '[' || c == ']' || 
-								c == '{' || c == '}' || 
-								c == '+' || c == '-' || 
-								c == '/' || c == '*' || 
-								c == '=' || c == '!'
-						){
-							//end of token
-							break;
-						}
-					}
-					
-					String token = r.getExpression().substring(idx1+1, idx2);
-					String fullyQualifiedRuleRef = r.getNamespace() + "." + token;
-					Rule toAdd = names.get(fullyQualifiedRuleRef);
-					if(toAdd == null){
-						throw new ParseException("Error while attempting to add subrule to rule " + r.getFullyQualifiedName() + ".  Unable to replace #" + token + " with subrule " + fullyQualifiedRuleRef + " because no subrule with that fully qualified name was found");
-					}
-					String newExpression = "";
-					if(idx1 > 0){
-						newExpression += r.getExpression().substring(0, idx1);
-					}
-					newExpression += "(" + toAdd.getExpression() + ")";
-					if(idx2 < r.getExpression().length()){
-						newExpression += r.getExpression().substring(idx2, r.getExpression().length());
-					}
-					if(r instanceof SubRule){
-					    parsedRules.add(new SubRule(r.getName(), newExpression, r.getNamespace(), r.getDescription()));
-					}else{
-					    parsedRules.add(new Rule(r.getName(), newExpression, r.getOutcome(), r.getPriority(), r.getNamespace(), r.getDescription()));
-					}
-				}else{
-				    parsedRules.add(r);
-				}
+		List<Rule> parsed = new ArrayList<Rule>();
+		Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+		Map<String, Expansion> expansions = new HashMap<String, Expansion>();
+		for(Rule r : rules){
+			String fullyQualifiedName = r.getFullyQualifiedName();
+			if(cached != null && cached.expansions.containsKey(fullyQualifiedName) && cached.references.containsKey(fullyQualifiedName)){
+				//the key covers all rules, so the cached expansion is exactly what expanding would produce
+				parsed.add(withExpression(r, cached.expansions.get(fullyQualifiedName)));
+				references.put(fullyQualifiedName, cached.references.get(fullyQualifiedName));
+				continue;
 			}
-			if(!foundRuleReference){
-				//yay, all done!
-				break;
-			}else{
-			    //go thru again, because there are still rules which need substituting
-			    rules = parsedRules;
-			    parsedRules = new ArrayList<Rule>();
+			Set<String> refs = new HashSet<String>();
+			Rule expanded = expandSubrules(r, names, refs, expansions);
+			parsed.add(expanded);
+			references.put(fullyQualifiedName, refs);
+			if(artifacts != null){
+				artifacts.expansions.put(fullyQualifiedName, expanded.getExpression());
+				artifacts.references.put(fullyQualifiedName, refs);
 			}
 		}
+		definitions = names;
+		subruleReferences = references;
+		parsedRules = parsed;
 		
-		compile();
+		try{
+			compile();
+			if(artifactCache != null && cached == null){
+				artifactCache.store(key, artifacts);
+			}
+		}finally{
+			artifacts = null;
+		}
 
 		log.info("*****Engine initialisation completed in " + (System.currentTimeMillis()-start) + " ms*****\r\n");
 	}
 
+	/**
+	 * Replaces every subrule reference in the rules expression with the referenced rules expression, 
+	 * contained within brackets, until no references remain.  The expanded expression is what the alpha index, 
+	 * the bytecode backend and subclasses work with.  MVEL compiles subrules separately, see {@link #linkSubrules(Rule)}.
+	 * @param references filled with the fully qualified names of all subrules which were substituted.
+	 * @param expansions the rules which were already expanded, so that each subrule is only expanded once.
+	 * @return the rule itself if it contains no references, otherwise a copy containing the expanded expression.
+	 * @throws ParseException if a referenced subrule does not exist, or subrules reference each other in a cycle.
+	 */
+	private Rule expandSubrules(Rule r, Map<String, Rule> names, Set<String> references, Map<String, Expansion> expansions) throws ParseException {
+		Expansion expansion = expand(r, names, expansions, new LinkedHashSet<String>());
+		if(expansion.references.isEmpty()){
+			return r;
+		}
+		references.addAll(expansion.references);
+		return withExpression(r, expansion.expression);
+	}
+	
+	/** @return the rule itself if its expression is the given one, otherwise a copy with the given expression */
+	private static Rule withExpression(Rule r, String expression) {
+		if(expression.equals(r.getExpression())){
+			return r;
+		}else if(r instanceof SubRule){
+		    return new SubRule(r.getName(), expression, r.getNamespace(), r.getDescription());
+		}else{
+		    return new Rule(r.getName(), expression, r.getOutcome(), r.getPriority(), r.getNamespace(), r.getDescription());
+		}
+	}
+
+	/**
+	 * Expands the rule, after expanding every subrule it references, depth first.
+	 * @param path the rules which are currently being expanded, in order to detect cycles.
+	 */
+	private Expansion expand(Rule r, Map<String, Rule> names, Map<String, Expansion> expansions, LinkedHashSet<String> path) throws ParseException {
+		String fullyQualifiedName = r.getFullyQualifiedName();
+		Expansion expansion = expansions.get(fullyQualifiedName);
+		if(expansion != null){
+			return expansion;
+		}
+		if(!path.add(fullyQualifiedName)){
+			throw new ParseException("Error while attempting to add subrule to rule " + fullyQualifiedName + ".  The subrules reference each other in a cycle: " + path + " -> " + fullyQualifiedName);
+		}
+		String expression = r.getExpression();
+		List<int[]> tokens = findReferences(expression);
+		Set<String> references = new HashSet<String>();
+		StringBuilder expanded = new StringBuilder();
+		int last = 0;
+		for(int[] t : tokens){
+			String token = expression.substring(t[0] + 1, t[1]);
+			String fullyQualifiedRuleRef = r.getNamespace() + "." + token;
+			Rule toAdd = names.get(fullyQualifiedRuleRef);
+			if(toAdd == null){
+				throw new ParseException("Error while attempting to add subrule to rule " + fullyQualifiedName + ".  Unable to replace #" + token + " with subrule " + fullyQualifiedRuleRef + " because no subrule with that fully qualified name was found");
+			}
+			Expansion subrule = expand(toAdd, names, expansions, path);
+			references.add(fullyQualifiedRuleRef);
+			references.addAll(subrule.references);
+			expanded.append(expression, last, t[0]).append('(').append(subrule.expression).append(')');
+			last = t[1];
+		}
+		path.remove(fullyQualifiedName);
+		if(!tokens.isEmpty()){
+			expression = expanded.append(expression, last, expression.length()).toString();
+		}
+		expansion = new Expansion(expression, references);
+		expansions.put(fullyQualifiedName, expansion);
+		return expansion;
+	}
+
+	/**
+	 * @return the start, i.e. the index of the '#', and the end of every subrule reference in the expression.
+	 */
+	private static List<int[]> findReferences(String expression) {
+		List<int[]> tokens = new ArrayList<int[]>();
+		int idx1 = expression.indexOf('#');
+		while(idx1 > -1){
+			//search to end of expression for next symbol
+			int idx2 = idx1 + 1; //to skip #
+			while(true){
+				idx2++;
+				if(idx2 >= expression.length()){
+					idx2 = expression.length();
+					break;
+				}
+				char c = expression.charAt(idx2);
+				if(
+						c == ' ' || c == '&' || 
+						c == '|' || c == '.' || 
+						c == '(' || c == ')' || 
+						c == '[' || c == ']' || 
+						c == '{' || c == '}' || 
+						c == '+' || c == '-' || 
+						c == '/' || c == '*' || 
+						c == '=' || c == '!'
+				){
+					//end of token
+					break;
+				}
+			}
+			tokens.add(new int[]{idx1, idx2});
+			idx1 = expression.indexOf('#', idx2);
+		}
+		return tokens;
+	}
+
+	/**
+	 * @return the rules expression as defined, with every subrule reference replaced by the variable from which MVEL 
+	 * 			reads the result of the subrule.  Subrules are thus compiled once and evaluated at most once per input, 
+	 * 			no matter how many rules reference them.
+	 */
+	private String linkSubrules(Rule definition) {
+		String expression = definition.getExpression();
+		List<int[]> tokens = findReferences(expression);
+		if(tokens.isEmpty()){
+			return expression;
+		}
+		StringBuilder linked = new StringBuilder();
+		int last = 0;
+		for(int[] t : tokens){
+			String fullyQualifiedRuleRef = definition.getNamespace() + "." + expression.substring(t[0] + 1, t[1]);
+			linked.append(expression, last, t[0]).append(SUBRULE_VARIABLE_PREFIX).append(subruleSlot(fullyQualifiedRuleRef));
+			last = t[1];
+		}
+		return linked.append(expression, last, expression.length()).toString();
+	}
+	
+	private int subruleSlot(String fullyQualifiedName) {
+		Integer slot = subruleSlots.get(fullyQualifiedName);
+		if(slot == null){
+			slot = subruleSlots.size();
+			subruleSlots.put(fullyQualifiedName, slot);
+		}
+		return slot;
+	}
+
 	protected void compile() throws CompileException {
+		Map<String, CompiledSubrule> subrules = new HashMap<String, CompiledSubrule>();
+		for(Rule r : parsedRules){
+			if(isReferenced(r)){
+				CompiledSubrule cs = compileSubrule(r);
+				if(cs != null){
+					subrules.put(cs.fullyQualifiedName, cs);
+				}
+			}
+		}
+		retainLinkable(subrules);
+		List<CompiledRule> compiled = new ArrayList<CompiledRule>();
 		for(Rule r : parsedRules){
 			if(r instanceof SubRule){
 				continue;
 			}
-			addCompiledRule(throwExceptionIfCompilationFails, r);
+			CompiledRule cr = compileRule(r, subrules);
+			if(cr != null){
+				compiled.add(cr);
+			}
 		}
+		publish(compilePredicates(compiled), subrules);
 	}
 
-	private void addCompiledRule(boolean throwExceptionIfCompilationFails, Rule r) throws CompileException {
+	/**
+	 * Called during incremental changes, before they are published.  Only the rules named in 
+	 * <code>changed</code> need compiling, all others may be taken over from the current state.
+	 * Subclasses which override {@link #compile()} must override this method too.
+	 * @param newParsedRules the complete list of parsed rules, as it will be after the change.
+	 * @param changed the fully qualified names of the rules which were added or whose expanded expression changed.
+	 * @throws CompileException if throwExceptionIfCompilationFails is true, and a changed rule fails to compile.
+	 */
+	protected void compile(List<Rule> newParsedRules, Set<String> changed) throws CompileException {
+		Map<String, CompiledRule> existing = new HashMap<String, CompiledRule>();
+		for(CompiledRule cr : compiledRules.rules){
+			existing.put(cr.getRule().getFullyQualifiedName(), cr);
+		}
+		Map<String, CompiledSubrule> subrules = new HashMap<String, CompiledSubrule>();
+		for(Rule r : newParsedRules){
+			String fullyQualifiedName = r.getFullyQualifiedName();
+			if(isReferenced(r)){
+				CompiledSubrule cs = changed.contains(fullyQualifiedName) ? null : compiledRules.subrules.byName.get(fullyQualifiedName);
+				if(cs == null){
+					cs = compileSubrule(r);
+				}
+				if(cs != null){
+					subrules.put(fullyQualifiedName, cs);
+				}
+			}
+		}
+		retainLinkable(subrules);
+		List<CompiledRule> compiled = new ArrayList<CompiledRule>(newParsedRules.size());
+		for(Rule r : newParsedRules){
+			if(r instanceof SubRule){
+				continue;
+			}
+			String fullyQualifiedName = r.getFullyQualifiedName();
+			CompiledRule cr = changed.contains(fullyQualifiedName) ? compileRule(r, subrules) : existing.get(fullyQualifiedName);
+			if(cr != null){
+				compiled.add(cr);
+			}
+		}
+		publish(compilePredicates(compiled), subrules);
+	}
+	
+	/** 
+	 * Removes the subrules which reference a subrule that failed to compile, until all remaining subrules 
+	 * only reference compiled subrules.  Rules referencing a removed subrule are compiled with it expanded.
+	 */
+	private void retainLinkable(Map<String, CompiledSubrule> subrules) {
+		boolean removed;
+		do{
+			removed = false;
+			for(Iterator<String> it = subrules.keySet().iterator(); it.hasNext(); ){
+				if(!subrules.keySet().containsAll(subruleReferences.get(it.next()))){
+					it.remove();
+					removed = true;
+				}
+			}
+		}while(removed);
+	}
+	
+	/** @return true if any rule references the given rule as a subrule */
+	private boolean isReferenced(Rule r) {
+		String fullyQualifiedName = r.getFullyQualifiedName();
+		for(Set<String> references : subruleReferences.values()){
+			if(references.contains(fullyQualifiedName)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * If the backend is {@link Backend#BYTECODE}, compiles the rules which have no predicate yet and which 
+	 * the alpha index will not decide, all in one go, since starting the Java compiler is expensive.
+	 * @return the given rules, where those that could be compiled are replaced by copies with their predicate.
+	 */
+	private List<CompiledRule> compilePredicates(List<CompiledRule> compiled) {
+		if(backend != Backend.BYTECODE){
+			return compiled;
+		}
+		List<Integer> indices = new ArrayList<Integer>();
+		List<String> expressions = new ArrayList<String>();
+		for(int i = 0; i < compiled.size(); i++){
+			CompiledRule cr = compiled.get(i);
+			if(cr.getConditions() == null && cr.predicate == null){
+				indices.add(i);
+				expressions.add(cr.getRule().getExpression());
+			}
+		}
+		if(expressions.isEmpty()){
+			return compiled;
+		}
+		BytecodeCompiler compiler = new BytecodeCompiler(inputType, inputName);
+		List<RulePredicate<Object>> predicates = artifacts == null ? compiler.compile(expressions) : compiler.compile(expressions, artifacts.classes);
+		List<CompiledRule> result = new ArrayList<CompiledRule>(compiled);
+		for(int i = 0; i < indices.size(); i++){
+			RulePredicate<Object> predicate = predicates.get(i);
+			if(predicate != null){
+				int index = indices.get(i);
+				result.set(index, new CompiledRule(compiled.get(index), predicate));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sorts the given rules by priority, builds the alpha index over them and makes them visible to evaluations.
+	 * Rules whose expression is a conjunction of equalities between input properties and string constants 
+	 * are indexed, all others are evaluated using MVEL.
+	 */
+	private void publish(List<CompiledRule> compiled, Map<String, CompiledSubrule> compiledSubrules) {
+		final SubruleTable subrules = new SubruleTable(compiledSubrules, subruleSlots.size());
+		//sorting is stable, so rules with equal priority stay in the order in which they were given
+		List<CompiledRule> sorted = new ArrayList<CompiledRule>(compiled);
+		Collections.sort(sorted, PRIORITY_ORDER);
+		List<CompiledRule> rules = new ArrayList<CompiledRule>(compiled.size());
+		Map<String, List<CompiledRule>> byNamespace = new HashMap<String, List<CompiledRule>>();
+		for(CompiledRule cr : sorted){
+			CompiledRule positioned = new CompiledRule(cr, rules.size());
+			rules.add(positioned);
+			List<CompiledRule> partition = byNamespace.get(positioned.getRule().getNamespace());
+			if(partition == null){
+				partition = new ArrayList<CompiledRule>();
+				byNamespace.put(positioned.getRule().getNamespace(), partition);
+			}
+			partition.add(positioned);
+		}
+		CompiledRuleSet all = new CompiledRuleSet(rules, subrules, inputName, accessors);
+		
+		//partition by namespace, so that evaluations for a namespace pattern only touch the rules in matching namespaces
+		Map<String, CompiledRuleSet> partitions = new HashMap<String, CompiledRuleSet>();
+		for(Map.Entry<String, List<CompiledRule>> e : byNamespace.entrySet()){
+			partitions.put(e.getKey(), byNamespace.size() == 1 ? all : new CompiledRuleSet(e.getValue(), subrules, inputName, accessors));
+		}
+		all.namespaces = new NamespaceIndex<CompiledRuleSet>(partitions, new NamespaceIndex.Combiner<CompiledRuleSet>() {
+			@Override
+			public CompiledRuleSet combine(List<CompiledRuleSet> selected) {
+				List<CompiledRule> merged = new ArrayList<CompiledRule>();
+				for(CompiledRuleSet partition : selected){
+					merged.addAll(partition.rules);
+				}
+				Collections.sort(merged, POSITION_ORDER);
+				return new CompiledRuleSet(merged, subrules, inputName, accessors);
+			}
+		});
+		this.compiledRules = all;
+	}
+
+	/**
+	 * Called once an incremental change has been published, i.e. {@link #parsedRules} contains the new rules.
+	 * The default implementation does nothing.
+	 */
+	protected void rulesChanged() {
+	}
+
+	/**
+	 * @param subrules the subrules which compiled. If the rule references any others, it is compiled with
+	 * 			them expanded, so that it fails, or not, exactly as if subrules were never compiled separately.
+	 */
+	private CompiledRule compileRule(Rule r, Map<String, CompiledSubrule> subrules) throws CompileException {
 		try{
-			this.rules.add(new CompiledRule(r));
+			boolean linkable = subrules.keySet().containsAll(subruleReferences.get(r.getFullyQualifiedName()));
+			String expression = linkable ? linkSubrules(definitions.get(r.getFullyQualifiedName())) : r.getExpression();
+			CompiledRule cr = new CompiledRule(r, compileExpression(expression), inputName);
 			log.info("added rule: " + r);
+			return cr;
 		}catch(org.mvel2.CompileException ex){
 			log.warning("Failed to compile " + r.getFullyQualifiedName() + ": " + ex.getMessage());
 			if(throwExceptionIfCompilationFails){
 				throw new CompileException(ex.getMessage());
 			}
+			return null;
+		}
+	}
+
+	/**
+	 * Compiles the expression using MVEL, unless the artifact cache holds it already.
+	 * @throws org.mvel2.CompileException if the expression is invalid.
+	 */
+	private Serializable compileExpression(String expression) {
+		ArtifactCache.Artifacts artifacts = this.artifacts;
+		if(artifacts != null){
+			byte[] bytes = artifacts.expressions.get(expression);
+			Serializable compiled = bytes == null ? null : ArtifactCache.deserialize(bytes);
+			if(compiled != null){
+				return compiled;
+			}
+		}
+		Serializable compiled = MVEL.compileExpression(expression);
+		if(artifacts != null){
+			byte[] bytes = ArtifactCache.serialize(compiled);
+			if(bytes != null){
+				artifacts.expressions.put(expression, bytes);
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Compiles a rule which other rules reference.  If it fails to compile, only the rules which reference it fail.
+	 * @return the compiled subrule, or null if it failed to compile.
+	 */
+	private CompiledSubrule compileSubrule(Rule r) {
+		String fullyQualifiedName = r.getFullyQualifiedName();
+		try{
+			return new CompiledSubrule(fullyQualifiedName, subruleSlot(fullyQualifiedName), compileExpression(linkSubrules(definitions.get(fullyQualifiedName))));
+		}catch(org.mvel2.CompileException ex){
+			log.warning("Failed to compile subrule " + fullyQualifiedName + ", rules referencing it will be compiled with it expanded: " + ex.getMessage());
+			return null;
 		}
 	}
 
+	/**
+	 * Adds a single rule to the engine.  Only the new rule is compiled, all other rules remain as they are.
+	 * @param rule the rule to add.  It may reference subrules which are already known to the engine.
+	 * @throws DuplicateNameException if a rule with the same fully qualified name already exists.
+	 * @throws CompileException thrown if throwExceptionIfCompilationFails is true, and the rule fails to compile
+	 * @throws ParseException Thrown if a subrule which is referenced in the rule cannot be resolved.
+	 */
+	public synchronized void addRule(Rule rule) throws DuplicateNameException, CompileException, ParseException {
+		String fullyQualifiedName = rule.getFullyQualifiedName();
+		if(definitions.containsKey(fullyQualifiedName)){
+			throw new DuplicateNameException("The name " + fullyQualifiedName + " was found in a different rule.");
+		}
+		applyChange(fullyQualifiedName, rule);
+	}
+
+	/**
+	 * Removes the rule with the given name from the engine.  No other rules are recompiled.
+	 * @param fullyQualifiedName see {@link Rule#getFullyQualifiedName()}
+	 * @return the removed rule, or null if the engine contains no rule with that name.
+	 * @throws ParseException Thrown if the rule is a subrule which other rules still reference.
+	 */
+	public synchronized Rule removeRule(String fullyQualifiedName) throws ParseException {
+		if(!definitions.containsKey(fullyQualifiedName)){
+			return null;
+		}
+		try {
+			return applyChange(fullyQualifiedName, null);
+		} catch (CompileException e) {
+			throw new RuntimeException(e); //should never happen, since nothing is compiled
+		}
+	}
+
+	/**
+	 * Replaces the rule which has the same fully qualified name as the given rule.  The rule and all 
+	 * rules which reference it as a subrule, directly or indirectly, are recompiled.  Nothing else is.
+	 * @return the rule which was replaced, or null if the engine contains no rule with that name, in which case nothing is changed.
+	 * @throws CompileException thrown if throwExceptionIfCompilationFails is true, and an affected rule fails to compile
+	 * @throws ParseException Thrown if a subrule which is referenced in the rule cannot be resolved.
+	 */
+	public synchronized Rule replaceRule(Rule rule) throws CompileException, ParseException {
+		String fullyQualifiedName = rule.getFullyQualifiedName();
+		if(!definitions.containsKey(fullyQualifiedName)){
+			return null;
+		}
+		return applyChange(fullyQualifiedName, rule);
+	}
+
+	/**
+	 * Applies a single add, remove (rule is null) or replace.  All new state is built on the side 
+	 * and only published once everything has been parsed and compiled, so a failure leaves the engine untouched,
+	 * and concurrent evaluations always see either the old or the new rules.
+	 */
+	private Rule applyChange(String fullyQualifiedName, Rule rule) throws CompileException, ParseException {
+		long start = System.currentTimeMillis();
+
+		//which rules are affected? the rule itself and every rule that references it
+		Set<String> changed = new HashSet<String>();
+		for(Map.Entry<String, Set<String>> e : subruleReferences.entrySet()){
+			if(e.getValue().contains(fullyQualifiedName)){
+				changed.add(e.getKey());
+			}
+		}
+		if(rule == null && !changed.isEmpty()){
+			throw new ParseException("Unable to remove subrule " + fullyQualifiedName + " because it is still referenced by " + changed);
+		}
+		
+		Map<String, Rule> names = new LinkedHashMap<String, Rule>(definitions);
+		Rule previous;
+		if(rule == null){
+			previous = names.remove(fullyQualifiedName);
+		}else{
+			previous = names.put(fullyQualifiedName, rule);
+			changed.add(fullyQualifiedName);
+		}
+
+		Map<String, Set<String>> references = new HashMap<String, Set<String>>(subruleReferences);
+		references.remove(fullyQualifiedName);
+		Map<String, Rule> expanded = new HashMap<String, Rule>();
+		Map<String, Expansion> expansions = new HashMap<String, Expansion>();
+		for(String name : changed){
+			Set<String> refs = new HashSet<String>();
+			expanded.put(name, expandSubrules(names.get(name), names, refs, expansions));
+			references.put(name, refs);
+		}
+		
+		List<Rule> newParsedRules = new ArrayList<Rule>(names.size());
+		boolean added = previous == null;
+		for(Rule r : parsedRules){
+			String name = r.getFullyQualifiedName();
+			if(rule == null && name.equals(fullyQualifiedName)){
+				continue;
+			}
+			Rule e = expanded.get(name);
+			newParsedRules.add(e == null ? r : e);
+		}
+		if(added){
+			newParsedRules.add(expanded.get(fullyQualifiedName));
+		}
+		
+		//compiling reads the new definitions, but until it succeeds, the old ones remain valid
+		Map<String, Rule> previousDefinitions = definitions;
+		Map<String, Set<String>> previousReferences = subruleReferences;
+		definitions = names;
+		subruleReferences = references;
+		try{
+			compile(newParsedRules, changed);
+		}catch(CompileException e){
+			definitions = previousDefinitions;
+			subruleReferences = previousReferences;
+			throw e;
+		}catch(RuntimeException e){
+			definitions = previousDefinitions;
+			subruleReferences = previousReferences;
+			throw e;
+		}
+		parsedRules = newParsedRules;
+		Set<String> outcomes = new HashSet<String>();
+		for(Rule r : names.values()){
+			if(r.getOutcome() != null){
+				outcomes.add(r.getOutcome());
+			}
+		}
+		uniqueOutcomes.addAll(outcomes);
+		uniqueOutcomes.retainAll(outcomes);
+		rulesChanged();
+
+		log.info("*****Rule " + fullyQualifiedName + " " + (rule == null ? "removed" : (added ? "added" : "replaced")) + " in " + (System.currentTimeMillis()-start) + " ms, " + changed.size() + " rule(s) recompiled*****");
+		return previous;
+	}
+
 	/**
 	 * See {@link #getBestOutcome(String, Object)}, except that all namespaces will be considered.
 	 * @param <Input> An input object to match against rules.
@@ -259,13 +823,210 @@ public class Engine {
 	 * @throws NoMatchingRuleFoundException If no matching rule was found.  Rules must evaluate to true in order to be candidates.
 	 */
 	public <Input> String getBestOutcome(String nameSpacePattern, Input input) throws NoMatchingRuleFoundException {
-
-		List<Rule> matches = getMatchingRules(nameSpacePattern, input);
-		if(matches == null || matches.isEmpty()){
-			throw new NoMatchingRuleFoundException();
-		}else{
-			return matches.get(0).getOutcome();
+		return getBestMatchingRule(nameSpacePattern, input).getOutcome();
+	}
+	
+	/**
+	 * See {@link #getBestMatchingRule(String, Object)}, except that all namespaces will be considered.
+	 */
+	public <Input> Rule getBestMatchingRule(Input input) throws NoMatchingRuleFoundException {
+		return getBestMatchingRule(null, input);
+	}
+	
+	/**
+	 * Returns the rule which {@link #getMatchingRules(String, Object)} would put first in its list, but 
+	 * without evaluating all rules.  Rules are sorted by priority when they are compiled, and evaluated
+	 * in that order until the first one evaluates to true.  With parallel evaluation, chunks of rules are 
+	 * evaluated in parallel, each until its first match, and the match with the highest priority wins.
+	 * @param <Input> the type of input
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param input the Object containing all inputs to the expression language rule.
+	 * @return the matching rule with the highest priority.
+	 * @throws NoMatchingRuleFoundException If no matching rule was found.  Rules must evaluate to true in order to be candidates.
+	 */
+	public <Input> Rule getBestMatchingRule(String nameSpacePattern, Input input) throws NoMatchingRuleFoundException {
+		
+		CompiledRuleSet compiled = this.compiledRules.select(nameSpacePattern);
+		EvaluationContext context = acquireContext(compiled, input);
+		try{
+			CompiledRule best = findBestMatchingRule(compiled, context);
+			if(best == null){
+				throw new NoMatchingRuleFoundException();
+			}
+			return best.getRule();
+		}finally{
+			releaseContext(context);
+		}
+	}
+	
+	/**
+	 * Determines the best outcome for each of the inputs, like {@link #getBestOutcome(String, Object)}, but 
+	 * selects the rules and prepares for evaluation only once for all of them.  All inputs are evaluated 
+	 * against the same rules, even if the rules are changed concurrently.
+	 * @param <Input> the type of input
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param inputs the inputs to evaluate.
+	 * @return the outcomes, in the order of the inputs, with null for every input which matched no rule.
+	 */
+	public <Input> List<String> getBestOutcomes(String nameSpacePattern, List<Input> inputs) {
+		
+		CompiledRuleSet compiled = this.compiledRules.select(nameSpacePattern);
+		String[] outcomes = new String[inputs.size()];
+		EvaluationContext context = acquireContext(compiled, null);
+		try{
+			for(int i = 0; i < outcomes.length; i++){
+				bind(context, inputs.get(i));
+				CompiledRule best = findBestMatchingRule(compiled, context);
+				outcomes[i] = best == null ? null : best.getRule().getOutcome();
+				clear(context);
+			}
+		}finally{
+			releaseContext(context);
+		}
+		return Arrays.asList(outcomes);
+	}
+	
+	/** @return the matching rule with the lowest position, or null if none matches */
+	private CompiledRule findBestMatchingRule(CompiledRuleSet compiled, EvaluationContext context) {
+		List<CompiledRule> undecided = context.undecided;
+		compiled.alphaIndex.match(context.factory, context.values(compiled), context.decidable, context.indexMatches, undecided);
+		
+		//the best rule that the index found is an upper bound: only rules before it need evaluating
+		CompiledRule best = null;
+		for(int i = 0; i < context.indexMatches.size(); i++){
+			CompiledRule r = context.indexMatches.get(i);
+			if(best == null || r.position < best.position){
+				best = r;
+			}
+		}
+		int bound = best == null ? Integer.MAX_VALUE : best.position;
+		
+		Collections.sort(undecided, POSITION_ORDER);
+		List<CompiledRule> unindexed = compiled.unindexed;
+		List<CompiledRule> candidates = null;
+		if(parallelExecutor != null && undecided.size() + unindexed.size() >= parallelThreshold){
+			candidates = new ArrayList<CompiledRule>(undecided.size() + unindexed.size());
+		}
+		int i1 = 0, i2 = 0;
+		while(i1 < undecided.size() || i2 < unindexed.size()){
+			CompiledRule r;
+			if(i2 == unindexed.size() || (i1 < undecided.size() && undecided.get(i1).position < unindexed.get(i2).position)){
+				r = undecided.get(i1++);
+			}else{
+				r = unindexed.get(i2++);
+			}
+			if(r.position >= bound){
+				break;
+			}
+			if(candidates != null){
+				candidates.add(r);
+			}else if(evaluate(r, context)){
+				return r;
+			}
+		}
+		if(candidates != null){
+			CompiledRule r = findFirstMatchInParallel(compiled, candidates, context);
+			if(r != null){
+				return r;
+			}
+		}
+		if(best != null){
+			logMatch(best, true);
 		}
+		return best;
+	}
+	
+	/**
+	 * Evaluates the candidates, which are in priority order, in chunks in parallel, like {@link #evaluateInParallel}.
+	 * Each chunk stops at its first match, or as soon as an earlier chunk has found one.  A rule which fails only
+	 * fails the evaluation if no rule before it matches, exactly as if the candidates were evaluated one by one.
+	 * @return the first matching candidate, or null if none matches.
+	 */
+	private CompiledRule findFirstMatchInParallel(final CompiledRuleSet compiled, final List<CompiledRule> candidates, EvaluationContext context) {
+		final AtomicInteger found = new AtomicInteger(Integer.MAX_VALUE);
+		int chunkSize = chunkSize(candidates.size());
+		List<Future<ChunkFailure>> futures = new ArrayList<Future<ChunkFailure>>();
+		List<ChunkFailure> failures = new ArrayList<ChunkFailure>();
+		final Object input = context.input;
+		try{
+			for(int from = chunkSize; from < candidates.size(); from += chunkSize){
+				final int start = from, end = Math.min(from + chunkSize, candidates.size());
+				try{
+					futures.add(parallelExecutor.submit(new Callable<ChunkFailure>() {
+						@Override
+						public ChunkFailure call() {
+							EvaluationContext workerContext = acquireContext(compiled, input);
+							try{
+								return findFirstMatch(candidates, start, end, workerContext, found);
+							}finally{
+								releaseContext(workerContext);
+							}
+						}
+					}));
+				}catch(RejectedExecutionException e){
+					//e.g. the executor has been shut down. the result is the same, it just takes longer
+					failures.add(findFirstMatch(candidates, start, end, context, found));
+				}
+			}
+			failures.add(findFirstMatch(candidates, 0, Math.min(chunkSize, candidates.size()), context, found));
+			for(Future<ChunkFailure> f : futures){
+				failures.add(f.get());
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while evaluating rules", e);
+		}catch(ExecutionException e){
+			//only errors, since rules failing are returned as failures
+			throw new IllegalStateException(e.getCause());
+		}finally{
+			for(Future<ChunkFailure> f : futures){
+				f.cancel(false);
+			}
+		}
+		int first = found.get();
+		for(ChunkFailure failure : failures){
+			if(failure != null && failure.index < first){
+				throw failure.exception;
+			}
+		}
+		return first == Integer.MAX_VALUE ? null : candidates.get(first);
+	}
+	
+	/** 
+	 * Evaluates the candidates between from and to until one matches, unless a candidate before it matched already.
+	 * @return the failure which stopped the evaluation, or null.
+	 */
+	private static ChunkFailure findFirstMatch(List<CompiledRule> candidates, int from, int to, EvaluationContext context, AtomicInteger found) {
+		for(int i = from; i < to && i < found.get(); i++){
+			try{
+				if(evaluate(candidates.get(i), context)){
+					int f;
+					while(i < (f = found.get()) && !found.compareAndSet(f, i)){
+					}
+					return null;
+				}
+			}catch(RuntimeException e){
+				return new ChunkFailure(i, e);
+			}
+		}
+		return null;
+	}
+	
+	/** a rule which failed during a parallel search for the first match, and its index among the candidates */
+	private static final class ChunkFailure {
+		private final int index;
+		private final RuntimeException exception;
+		private ChunkFailure(int index, RuntimeException exception) {
+			this.index = index;
+			this.exception = exception;
+		}
+	}
+	
+	/** @return the number of rules per chunk, so that there is one chunk per thread of the parallel executor */
+	private int chunkSize(int rules) {
+		int parallelism = parallelExecutor instanceof ForkJoinPool ? ((ForkJoinPool) parallelExecutor).getParallelism() : Runtime.getRuntime().availableProcessors();
+		int chunks = Math.max(1, Math.min(parallelism, rules));
+		return (rules + chunks - 1) / chunks;
 	}
 	
 	/**
@@ -366,6 +1127,8 @@ public class Engine {
 	}
 		
 	/**
+	 * If the engine was built with parallel evaluation, and more rules than the threshold need evaluating, 
+	 * they are evaluated in chunks, in parallel.  See {@link Builder#withParallelEvaluation(ExecutorService, int)}.
 	 * @param <Input> the type of input
 	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
 	 * @param input the Object containing all inputs to the expression language rule.
@@ -373,45 +1136,362 @@ public class Engine {
 	 */
 	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input) {
 		
-		Pattern pattern = null;
-		if(nameSpacePattern != null){
-			pattern = Pattern.compile(nameSpacePattern);
-		}
-		
-		Map<String, Input> vars = new HashMap<String, Input>();
-		vars.put(inputName, input);
-
-		List<Rule> matchingRules = new ArrayList<Rule>();
-		for(CompiledRule r : rules){
+		CompiledRuleSet compiled = this.compiledRules.select(nameSpacePattern);
+		EvaluationContext context = acquireContext(compiled, input);
+		try{
+			//rules which the index decides need no evaluation at all
+			compiled.alphaIndex.match(context.factory, context.values(compiled), context.decidable, context.indexMatches, context.undecided);
 			
-			if(pattern != null){
-				if(!pattern.matcher(r.getRule().getNamespace()).matches()){
-					continue;
-				}
+			List<CompiledRule> matchingRules = context.matches;
+			for(int i = 0; i < context.indexMatches.size(); i++){
+				CompiledRule r = context.indexMatches.get(i);
+				matchingRules.add(r);
+				logMatch(r, true);
+			}
+			evaluate(context.undecided, context);
+			if(parallelExecutor != null && compiled.unindexed.size() >= parallelThreshold){
+				evaluateInParallel(compiled, input, context);
+			}else{
+				evaluate(compiled.unindexed, context);
 			}
+			if(matchingRules.isEmpty()){
+				return Collections.emptyList();
+			}
+			
+			//order by priority! rules are already sorted, this just merges the above
+			Collections.sort(matchingRules, POSITION_ORDER);
 			
-			Object o = MVEL.executeExpression(r.getCompiled(), vars);
+			Rule[] result = new Rule[matchingRules.size()];
+			for(int i = 0; i < result.length; i++){
+				result[i] = matchingRules.get(i).getRule();
+			}
+			return Arrays.asList(result);
+		}finally{
+			releaseContext(context);
+		}
+	}
+	
+	private void evaluate(List<CompiledRule> rules, EvaluationContext context) {
+		for(int i = 0; i < rules.size(); i++){
+			CompiledRule r = rules.get(i);
+			if(evaluate(r, context)){
+				context.matches.add(r);
+			}
+		}
+	}
+	
+	/**
+	 * Splits the rules into one chunk per thread of the executor.  All but the first chunk are evaluated
+	 * by the executor, each with a context of its own, while the callers thread evaluates the first chunk.
+	 * Matches are added to the contexts matches, in no particular order.
+	 */
+	private void evaluateInParallel(final CompiledRuleSet compiled, final Object input, EvaluationContext context) {
+		List<CompiledRule> rules = compiled.unindexed;
+		int chunkSize = chunkSize(rules.size());
+		List<Future<List<CompiledRule>>> futures = new ArrayList<Future<List<CompiledRule>>>();
+		try{
+			for(int from = chunkSize; from < rules.size(); from += chunkSize){
+				final List<CompiledRule> chunk = rules.subList(from, Math.min(from + chunkSize, rules.size()));
+				try{
+					futures.add(parallelExecutor.submit(new Callable<List<CompiledRule>>() {
+						@Override
+						public List<CompiledRule> call() {
+							EvaluationContext workerContext = acquireContext(compiled, input);
+							try{
+								evaluate(chunk, workerContext);
+								return new ArrayList<CompiledRule>(workerContext.matches);
+							}finally{
+								releaseContext(workerContext);
+							}
+						}
+					}));
+				}catch(RejectedExecutionException e){
+					//e.g. the executor has been shut down. the result is the same, it just takes longer
+					evaluate(chunk, context);
+				}
+			}
+			evaluate(rules.subList(0, Math.min(chunkSize, rules.size())), context);
+			for(Future<List<CompiledRule>> f : futures){
+				context.matches.addAll(f.get());
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while evaluating rules", e);
+		}catch(ExecutionException e){
+			//a rule failed, exactly as it would have done if evaluated on this thread
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}finally{
+			for(Future<List<CompiledRule>> f : futures){
+				f.cancel(false);
+			}
+		}
+	}
+	
+	private static boolean evaluate(CompiledRule r, EvaluationContext context) {
+		boolean matched;
+		if(r.predicate != null && context.typed){
+			matched = r.predicate.test(context.input);
+		}else{
+			Object o = MVEL.executeExpression(r.getCompiled(), context.factory);
+			//same as String.valueOf(o).equals("true"), without creating a string for the usual case
+			matched = o instanceof Boolean ? ((Boolean) o).booleanValue() : (o != null && "true".equals(o.toString()));
+		}
+		logMatch(r, matched);
+		return matched;
+	}
+	
+	private EvaluationContext acquireContext(CompiledRuleSet compiled, Object input) {
+		EvaluationContext context = contexts.get();
+		if(context.inUse){
+			//re-entrant call, e.g. from within a rule
+			context = new EvaluationContext();
+		}
+		context.inUse = true;
+		context.vars.use(compiled.subrules);
+		bind(context, input);
+		return context;
+	}
+	
+	/** prepares the context for evaluating rules against the given input */
+	private void bind(EvaluationContext context, Object input) {
+		context.vars.next();
+		context.vars.put(inputName, input);
+		context.input = input;
+		//generated predicates cast the input, so they may only be used with the type they were compiled for
+		context.typed = inputType != null && inputType.isInstance(input);
+	}
+	
+	private void releaseContext(EvaluationContext context) {
+		//dont hold on to the input or anything read from it
+		bind(context, null);
+		clear(context);
+		context.vars.use(null);
+		context.inUse = false;
+	}
+	
+	/** clears everything that one evaluation leaves behind */
+	private static void clear(EvaluationContext context) {
+		Arrays.fill(context.values, null);
+		context.indexMatches.clear();
+		context.undecided.clear();
+		context.matches.clear();
+	}
+	
+	private static void logMatch(CompiledRule r, boolean matched) {
+		if(log.isLoggable(Level.INFO)){
 			String msg = r.getRule().getFullyQualifiedName() + "-{" + r.getRule().getExpression() + "}";
-			if(String.valueOf(o).equals("true")){
-				matchingRules.add(r.getRule());
-                if(log.isLoggable(Level.INFO)) log.info("matched: " + msg);
-			}else{
-                if(log.isLoggable(Level.INFO)) log.info("unmatched: " + msg);
+			log.info((matched ? "matched: " : "unmatched: ") + msg);
+		}
+	}
+	
+	/** the order of rules in a {@link CompiledRuleSet}, i.e. highest priority first, and for equal priorities, 
+	 * in the order in which the rules were given to the engine */
+	private static final Comparator<CompiledRule> PRIORITY_ORDER = new Comparator<CompiledRule>() {
+		@Override
+		public int compare(CompiledRule r1, CompiledRule r2) {
+			return r1.getRule().compareTo(r2.getRule());
+		}
+	};
+	
+	private static final Comparator<CompiledRule> POSITION_ORDER = new Comparator<CompiledRule>() {
+		@Override
+		public int compare(CompiledRule r1, CompiledRule r2) {
+			return r1.position < r2.position ? -1 : (r1.position == r2.position ? 0 : 1);
+		}
+	};
+	
+	/** 
+	 * Scratch state for evaluations, held per thread and reused, so that evaluating rules does not 
+	 * create garbage, other than what MVEL itself creates.
+	 */
+	private static final class EvaluationContext {
+		private final Variables vars = new Variables();
+		/** the resolver reads variables from the map on every access, so it can be reused for every input */
+		private final VariableResolverFactory factory = new MapVariableResolverFactory(vars);
+		private final List<CompiledRule> indexMatches = new ArrayList<CompiledRule>();
+		private final List<CompiledRule> undecided = new ArrayList<CompiledRule>();
+		private final List<CompiledRule> matches = new ArrayList<CompiledRule>();
+		private Object[] values = new Object[0];
+		private boolean[] decidable = new boolean[0];
+		private Object input;
+		private EvaluationContext() {
+			vars.factory = factory;
+		}
+		/** true if the input is of the type which predicates were compiled for */
+		private boolean typed;
+		private boolean inUse;
+		
+		/** @return an array for the property values read by the alpha index of the given rules */
+		private Object[] values(CompiledRuleSet compiled) {
+			int size = compiled.alphaIndex.getPropertyCount();
+			if(values.length < size){
+				values = new Object[size];
+				decidable = new boolean[size];
+			}
+			return values;
+		}
+	}
+	
+	/**
+	 * The variables which MVEL reads while evaluating rules, i.e. the input, and the results of subrules.
+	 * A subrule is evaluated when its variable is first read during an evaluation, and its result is then 
+	 * kept until the next evaluation, so every rule referencing it reuses that result.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Variables extends HashMap<String, Object> {
+		private SubruleTable subrules;
+		private VariableResolverFactory factory;
+		/** the results of subrules by slot, which are valid if the slots evaluation is the current one */
+		private Object[] results = new Object[0];
+		private int[] evaluations = new int[0];
+		private int evaluation;
+		
+		private void use(SubruleTable subrules) {
+			this.subrules = subrules;
+			if(subrules == null){
+				Arrays.fill(results, null);
+			}else if(results.length < subrules.slots){
+				results = Arrays.copyOf(results, subrules.slots);
+				evaluations = Arrays.copyOf(evaluations, subrules.slots);
 			}
 		}
 		
-		//order by priority!
-		Collections.sort(matchingRules);
+		/** invalidates the results of all subrules, without touching them */
+		private void next() {
+			if(++evaluation == Integer.MAX_VALUE){
+				Arrays.fill(evaluations, 0);
+				evaluation = 1;
+			}
+		}
+		
+		@Override
+		public Object get(Object key) {
+			Object value = super.get(key);
+			if(value != null || subrules == null){
+				return value;
+			}
+			CompiledSubrule subrule = subrules.byVariable.get(key);
+			if(subrule == null){
+				return null;
+			}
+			int slot = subrule.slot;
+			if(evaluations[slot] != evaluation){
+				results[slot] = MVEL.executeExpression(subrule.compiled, factory);
+				evaluations[slot] = evaluation;
+			}
+			return results[slot];
+		}
 		
-		return matchingRules;
+		@Override
+		public boolean containsKey(Object key) {
+			return super.containsKey(key) || (subrules != null && subrules.byVariable.containsKey(key));
+		}
+	}
+	
+	/** a rule which other rules reference, compiled on its own, see {@link Engine#linkSubrules(Rule)} */
+	private static final class CompiledSubrule {
+		private final String fullyQualifiedName;
+		private final int slot;
+		private final Serializable compiled;
+		private CompiledSubrule(String fullyQualifiedName, int slot, Serializable compiled) {
+			this.fullyQualifiedName = fullyQualifiedName;
+			this.slot = slot;
+			this.compiled = compiled;
+		}
+	}
+	
+	/** the compiled subrules, which are published together with the rules referencing them */
+	private static final class SubruleTable {
+		private final Map<String, CompiledSubrule> byName;
+		private final Map<String, CompiledSubrule> byVariable = new HashMap<String, CompiledSubrule>();
+		/** the number of slots, which is at least one more than the highest slot of any subrule */
+		private final int slots;
+		private SubruleTable(Map<String, CompiledSubrule> byName, int slots) {
+			this.byName = byName;
+			this.slots = slots;
+			for(CompiledSubrule cs : byName.values()){
+				byVariable.put(SUBRULE_VARIABLE_PREFIX + cs.slot, cs);
+			}
+		}
+	}
+	
+	/** the expanded expression of a rule, and all the subrules it references, directly or indirectly */
+	private static final class Expansion {
+		private final String expression;
+		private final Set<String> references;
+		private Expansion(String expression, Set<String> references) {
+			this.expression = expression;
+			this.references = references;
+		}
+	}
+	
+	/** an immutable view of the compiled rules, which is replaced as a whole whenever the rules change */
+	private static final class CompiledRuleSet {
+		private final List<CompiledRule> rules;
+		private final List<CompiledRule> unindexed;
+		private final AlphaIndex<CompiledRule> alphaIndex;
+		/** all subrules, also those from other namespaces */
+		private final SubruleTable subrules;
+		/** the rules by namespace.  only set for the set containing all rules, before it is published */
+		private NamespaceIndex<CompiledRuleSet> namespaces;
+		/**
+		 * @param rules compiled rules, in the order of their positions.
+		 */
+		private CompiledRuleSet(List<CompiledRule> rules, SubruleTable subrules, String inputName, Map<String, Serializable> accessors) {
+			this.rules = rules;
+			this.subrules = subrules;
+			this.unindexed = new ArrayList<CompiledRule>();
+			Map<CompiledRule, AlphaIndex.Conditions> indexed = new LinkedHashMap<CompiledRule, AlphaIndex.Conditions>();
+			for(CompiledRule cr : rules){
+				if(cr.getConditions() == null){
+					unindexed.add(cr);
+				}else{
+					indexed.put(cr, cr.getConditions());
+				}
+			}
+			this.alphaIndex = new AlphaIndex<CompiledRule>(indexed, inputName, accessors);
+		}
+		/** @return the rules whose namespace matches the pattern, or all rules if the pattern is null */
+		private CompiledRuleSet select(String nameSpacePattern) {
+			return nameSpacePattern == null ? this : namespaces.select(nameSpacePattern);
+		}
 	}
 	
 	private static final class CompiledRule {
-		private Rule rule;
-		private Serializable compiled;
-		private CompiledRule(Rule rule) {
+		private final Rule rule;
+		private final Serializable compiled;
+		private final AlphaIndex.Conditions conditions;
+		/** the rule compiled to bytecode, or null if it is evaluated by MVEL */
+		private final RulePredicate<Object> predicate;
+		/** the index of this rule in the list of compiled rules */
+		private final int position;
+		/**
+		 * @param rule the rule, with its subrules expanded, which is what the alpha index analyses.
+		 * @param compiled the expression which MVEL evaluates, see {@link Engine#linkSubrules(Rule)}.
+		 */
+		private CompiledRule(Rule rule, Serializable compiled, String inputName) {
 			this.rule = rule;
-			this.compiled = MVEL.compileExpression(rule.getExpression());
+			this.compiled = compiled;
+			this.conditions = AlphaIndex.analyse(rule.getExpression(), inputName);
+			this.predicate = null;
+			this.position = -1;
+		}
+		private CompiledRule(CompiledRule other, int position) {
+			this.rule = other.rule;
+			this.compiled = other.compiled;
+			this.conditions = other.conditions;
+			this.predicate = other.predicate;
+			this.position = position;
+		}
+		private CompiledRule(CompiledRule other, RulePredicate<Object> predicate) {
+			this.rule = other.rule;
+			this.compiled = other.compiled;
+			this.conditions = other.conditions;
+			this.predicate = predicate;
+			this.position = other.position;
 		}
 		private Serializable getCompiled() {
 			return compiled;
@@ -419,8 +1499,74 @@ public class Engine {
 		private Rule getRule() {
 			return rule;
 		}
+		private AlphaIndex.Conditions getConditions() {
+			return conditions;
+		}
 	}
 
-}
+	public static class Builder {
+		
+		private final Collection<Rule> rules;
+		private String inputName = Engine.DEFAULT_INPUT_NAME;
+		private boolean throwExceptionIfCompilationFails = true;
+		private Backend backend = Backend.MVEL;
+		private Class<?> inputType;
+		private ExecutorService parallelExecutor;
+		private int parallelThreshold;
+		private File artifactCacheDirectory;
+
+		public Builder(Collection<Rule> rules){
+			this.rules = rules;
+		}
 
-		
\ No newline at end of file
+		public Builder withInputName(String inputName){
+			this.inputName = inputName;
+			return this;
+		}
+		
+		public Builder withThrowExceptionIfCompilationFails(boolean throwExceptionIfCompilationFails){
+			this.throwExceptionIfCompilationFails = throwExceptionIfCompilationFails;
+			return this;
+		}
+		
+		/** 
+		 * @param backend see {@link Backend}
+		 * @param inputType required for {@link Backend#BYTECODE}: the type of input passed to the engine, which must be public.
+		 */
+		public Builder withBackend(Backend backend, Class<?> inputType){
+			this.backend = backend;
+			this.inputType = inputType;
+			return this;
+		}
+		
+		/**
+		 * Makes {@link Engine#getMatchingRules(String, Object)} and {@link Engine#getBestMatchingRule(String, Object)}, 
+		 * and thus the outcomes and actions based on them, evaluate rules in parallel, if at least
+		 * <code>threshold</code> rules need evaluating.  Below that, splitting the work costs more than it saves.
+		 * Rules which the alpha index decides are never evaluated, so are not counted.
+		 * @param executor the executor to evaluate chunks of rules on, or null to use the common {@link ForkJoinPool}.
+		 * 			The engine does not shut it down.
+		 * @param threshold the minimum number of rules to evaluate in parallel
+		 */
+		public Builder withParallelEvaluation(ExecutorService executor, int threshold){
+			this.parallelExecutor = executor == null ? ForkJoinPool.commonPool() : executor;
+			this.parallelThreshold = threshold;
+			return this;
+		}
+		
+		/**
+		 * Makes the engine keep what it compiles in the given directory, so that it starts faster the next time it is
+		 * built with exactly the same rules, in the same order.  Only what is compiled while building the engine is kept,
+		 * not rules which are added or replaced later.  The directory may be shared by many engines.
+		 * @param directory where compiled rules are kept.  It is created if necessary.
+		 */
+		public Builder withArtifactCache(File directory){
+			this.artifactCacheDirectory = directory;
+			return this;
+		}
+		
+		public Engine build() throws DuplicateNameException, CompileException, ParseException {
+			return new Engine(rules, inputName, throwExceptionIfCompilationFails, null, null, backend, inputType, parallelExecutor, parallelThreshold, artifactCacheDirectory);
+		}
+	}
+}
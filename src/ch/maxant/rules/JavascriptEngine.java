@@ -30,9 +30,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * A Javascript based Subclass of {@link Engine}. <br>
@@ -46,6 +47,76 @@ public class JavascriptEngine extends Engine {
 	private static final String MIME_TYPE = "text/javascript";
 
 	private static final ScriptEngineManager ENGINE_MANAGER = new ScriptEngineManager();
+
+	/** how evaluations obtain a script engine */
+	public enum ExecutionMode {
+		/** engines are borrowed from a pool for each evaluation and returned afterwards.  the default. */
+		POOLED,
+		/** 
+		 * each thread keeps an engine of its own, so evaluations need neither the pool nor its locks.  
+		 * Each evaluation passes the input in bindings of its own, rather than by modifying the engines context.
+		 * There are as many engines as threads which evaluate rules, so only use this with a bounded number of threads.
+		 * The pool is still used when compiling changed rules.
+		 */
+		THREAD_LOCAL
+	}
+	
+	/** 
+	 * How long evaluations waited to obtain an engine, so that the execution modes can be compared.
+	 * For {@link ExecutionMode#POOLED}, this includes waiting for the pool and its locks, and for both modes, 
+	 * creating engines when none is available.
+	 */
+	public static final class EngineStatistics {
+		private final ExecutionMode executionMode;
+		private final long acquisitions;
+		private final long totalWaitNanos;
+		private final long maxWaitNanos;
+		private final long enginesCreated;
+		private final int numActive;
+		private final int numIdle;
+		private EngineStatistics(ExecutionMode executionMode, long acquisitions, long totalWaitNanos, long maxWaitNanos, long enginesCreated, int numActive, int numIdle) {
+			this.executionMode = executionMode;
+			this.acquisitions = acquisitions;
+			this.totalWaitNanos = totalWaitNanos;
+			this.maxWaitNanos = maxWaitNanos;
+			this.enginesCreated = enginesCreated;
+			this.numActive = numActive;
+			this.numIdle = numIdle;
+		}
+		public ExecutionMode getExecutionMode() {
+			return executionMode;
+		}
+		/** @return the number of times an engine was obtained for an evaluation */
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+		public long getTotalWaitNanos() {
+			return totalWaitNanos;
+		}
+		public long getMaxWaitNanos() {
+			return maxWaitNanos;
+		}
+		public long getMeanWaitNanos() {
+			return acquisitions == 0 ? 0 : totalWaitNanos / acquisitions;
+		}
+		/** @return the number of engines which were created, i.e. which compiled all rules */
+		public long getEnginesCreated() {
+			return enginesCreated;
+		}
+		/** @return the number of engines currently borrowed from the pool */
+		public int getNumActive() {
+			return numActive;
+		}
+		/** @return the number of engines currently idle in the pool */
+		public int getNumIdle() {
+			return numIdle;
+		}
+		@Override
+		public String toString() {
+			return "EngineStatistics [executionMode=" + executionMode + ", acquisitions=" + acquisitions + ", meanWaitNanos=" + getMeanWaitNanos() 
+				+ ", maxWaitNanos=" + maxWaitNanos + ", enginesCreated=" + enginesCreated + ", numActive=" + numActive + ", numIdle=" + numIdle + "]";
+		}
+	}
 	
 	static {
 		ScriptEngine engine = ENGINE_MANAGER.getEngineByMimeType(MIME_TYPE);
@@ -69,6 +140,8 @@ public class JavascriptEngine extends Engine {
 			log.info("\r\n\r\n>>>Creating JavaScript rule engine...<<<");
 			long start = System.currentTimeMillis();
 			Engine engine = new Engine();
+			engine.generation = generation;
+			enginesCreated.incrementAndGet();
 			engine.engine = ENGINE_MANAGER.getEngineByMimeType(MIME_TYPE);
 			compile(engine);
 			log.info(">>>JavaScript rule engine initialisation completed in " + (System.currentTimeMillis()-start) + " ms<<<\r\n");
@@ -87,7 +160,24 @@ public class JavascriptEngine extends Engine {
 	 */
 	private static final class Engine {
 		private ScriptEngine engine;
-		private Map<Rule, CompiledScript>  rules = new HashMap<Rule, CompiledScript>();
+		/** in priority order, see {@link JavascriptEngine#compile(Engine)} */
+		private Map<Rule, CompiledScript>  rules = new LinkedHashMap<Rule, CompiledScript>();
+		/** the rule generation which this engine was compiled from */
+		private int generation;
+		/** only set for engines belonging to a thread, see {@link ExecutionMode#THREAD_LOCAL}. reused for every evaluation. */
+		private ScriptContext context;
+		private boolean inUse;
+		/** see {@link JavascriptEngine#fuse(Engine)} */
+		private boolean fuseAttempted;
+		/** the name of the function containing all rules, or null if rules are evaluated one by one */
+		private String fusedFunction;
+		/** the rules in the order of their indices in the fused function */
+		private Rule[] fusedRules;
+		/** scratch space for the indices which the fused function returns */
+		private int[] fusedMatches;
+		/** the last namespace selection and the rule indices which it enables. selections are cached, so are compared by identity */
+		private Set<String> selection;
+		private boolean[] enabled;
 	}
 
 	/**
@@ -97,6 +187,22 @@ public class JavascriptEngine extends Engine {
 	 * http://stackoverflow.com/questions/27710407/reuse-nashorn-scriptengine-in-servlet<br>
 	 */
 	private ObjectPool<Engine> engines;
+	
+	/** incremented each time rules are changed incrementally, so that pooled engines compiled from old rules are discarded */
+	private volatile int generation;
+	
+	/** the namespaces of the rules, so that namespace patterns are only compiled and matched once */
+	private volatile NamespaceIndex<Set<String>> namespaces;
+	
+	private final ExecutionMode executionMode;
+	private final boolean fuseRules;
+	private final ThreadLocal<Engine> threadEngines = new ThreadLocal<Engine>();
+	
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	/** not initialised in its declaration, since the first engine is created while the super constructor runs */
+	private AtomicLong enginesCreated;
 
 	/**
 	 * @return [numActive, numIdle] 
@@ -105,6 +211,13 @@ public class JavascriptEngine extends Engine {
 		return new int[]{engines.getNumActive(), engines.getNumIdle()};
 	}
 	
+	/**
+	 * @return how long evaluations have waited to obtain an engine so far
+	 */
+	public EngineStatistics getStatistics(){
+		return new EngineStatistics(executionMode, acquisitions.sum(), totalWaitNanos.sum(), maxWaitNanos.get(), enginesCreated.get(), engines.getNumActive(), engines.getNumIdle());
+	}
+	
 	/**
 	 * Creates the engine with a pool size of {@value GenericObjectPoolConfig#DEFAULT_MAX_TOTAL}. 
 	 * The pool is not preloaded.
@@ -130,7 +243,19 @@ public class JavascriptEngine extends Engine {
 	 * @param preloadPool if true, then before the constructor returns, it fills the pool.
 	 */
 	public JavascriptEngine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Integer poolSize, boolean preloadPool, String... javascriptFilesToLoad) throws DuplicateNameException, CompileException, ParseException {
+		this(rules, inputName, throwExceptionIfCompilationFails, poolSize, preloadPool, ExecutionMode.POOLED, false, javascriptFilesToLoad);
+	}
+	
+	/**
+	 * See {@link #JavascriptEngine(Collection, String, boolean, Integer, boolean, String...)}
+	 * @param executionMode see {@link ExecutionMode}
+	 * @param fuseRules if true, then all rules are generated into a single script function, so that each evaluation 
+	 * 			calls the script engine once, rather than once per rule.
+	 */
+	public JavascriptEngine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Integer poolSize, boolean preloadPool, ExecutionMode executionMode, boolean fuseRules, String... javascriptFilesToLoad) throws DuplicateNameException, CompileException, ParseException {
 		super(rules, inputName, throwExceptionIfCompilationFails, poolSize, javascriptFilesToLoad);
+		this.executionMode = executionMode;
+		this.fuseRules = fuseRules;
 		
 		if(preloadPool){
 			
@@ -198,10 +323,64 @@ public class JavascriptEngine extends Engine {
 		}
 	}
 
+	/** 
+	 * @return an engine for the current evaluation, which must be released using {@link #releaseEngine(Engine)}.
+	 */
+	private Engine acquireEngine() {
+		long start = System.nanoTime();
+		Engine engine = null;
+		if(executionMode == ExecutionMode.THREAD_LOCAL){
+			engine = threadEngines.get();
+			if(engine == null || engine.generation != generation){
+				//compiled from old rules, or the first evaluation on this thread
+				try {
+					engine = new PoolableEngineFactory().create();
+				} catch (Exception e) {
+					handlePoolProblem(e);
+				}
+				engine.context = new SimpleScriptContext();
+				engine.context.setBindings(engine.engine.getBindings(ScriptContext.ENGINE_SCOPE), ScriptContext.ENGINE_SCOPE);
+				threadEngines.set(engine);
+			}
+			if(engine.inUse){
+				//re-entrant call, e.g. from within a rule
+				engine = null;
+			}else{
+				engine.inUse = true;
+			}
+		}
+		if(engine == null){
+			try {
+				engine = engines.borrowObject();
+			} catch (Exception e) {
+				handlePoolProblem(e);
+			}
+		}
+		long waited = System.nanoTime() - start;
+		acquisitions.increment();
+		totalWaitNanos.add(waited);
+		for(long max = maxWaitNanos.get(); waited > max && !maxWaitNanos.compareAndSet(max, waited); max = maxWaitNanos.get()){
+			//retry until either this or a longer wait is recorded
+		}
+		return engine;
+	}
+	
+	private void releaseEngine(Engine engine) {
+		if(engine != null && engine.context != null){
+			engine.inUse = false;
+		}else{
+			returnEngineToPool(engine);
+		}
+	}
+
 	private void returnEngineToPool(Engine engine) {
 		if(engine != null){
 			try {
-				engines.returnObject(engine);
+				if(engine.generation != generation){
+					engines.invalidateObject(engine);
+				}else{
+					engines.returnObject(engine);
+				}
 			} catch (Exception e) {
 				handlePoolProblem(e);
 			}
@@ -217,9 +396,11 @@ public class JavascriptEngine extends Engine {
 		//this gets called by the constructor. 
 		//it creates the very first engine.
 		//no need to by synchronized, since this is called from the constructor
+		indexNamespaces();
 		Engine engine = null;
 		try{
 			if(engines == null){
+				enginesCreated = new AtomicLong();
 				engines = new GenericObjectPool<Engine>(new PoolableEngineFactory(), getPoolConfig());
 			}
 			engine = engines.borrowObject();
@@ -232,8 +413,74 @@ public class JavascriptEngine extends Engine {
 		}
 	}
 	
-	private void compile(Engine engine) throws CompileException {
+	/**
+	 * Checks that the changed rules compile, using an engine from the pool. The pool itself 
+	 * is refreshed in {@link #rulesChanged()}, once the new rules have been published.
+	 */
+	@Override
+	protected void compile(List<Rule> newParsedRules, Set<String> changed) throws CompileException {
+		Engine engine = null;
+		try{
+			engine = engines.borrowObject();
+		} catch (Exception e) {
+			handlePoolProblem(e);
+		}
+		try{
+			for(Rule r : newParsedRules){
+				if(r instanceof SubRule || !changed.contains(r.getFullyQualifiedName())){
+					continue;
+				}
+				try{
+					((Compilable)engine.engine).compile(r.getExpression());
+				}catch(ScriptException ex){
+					log.warning("Failed to compile " + r.getFullyQualifiedName() + ": " + ex.getMessage());
+					if(throwExceptionIfCompilationFails){
+						throw new CompileException(ex.getMessage());
+					}
+				}
+			}
+		}finally{
+			returnEngineToPool(engine);
+		}
+	}
+	
+	/**
+	 * Discards all pooled engines, since they were compiled from the old rules. 
+	 * Engines which are currently in use are discarded when they are returned.
+	 */
+	@Override
+	protected void rulesChanged() {
+		indexNamespaces();
+		generation++;
+		try {
+			engines.clear();
+		} catch (Exception e) {
+			handlePoolProblem(e);
+		}
+	}
+	
+	private void indexNamespaces() {
+		Map<String, Set<String>> partitions = new HashMap<String, Set<String>>();
 		for(Rule r : parsedRules){
+			partitions.put(r.getNamespace(), Collections.singleton(r.getNamespace()));
+		}
+		namespaces = new NamespaceIndex<Set<String>>(partitions, new NamespaceIndex.Combiner<Set<String>>() {
+			@Override
+			public Set<String> combine(List<Set<String>> selected) {
+				Set<String> union = new HashSet<String>();
+				for(Set<String> s : selected){
+					union.addAll(s);
+				}
+				return union;
+			}
+		});
+	}
+	
+	private void compile(Engine engine) throws CompileException {
+		//sort once, so that evaluation can stop at the first match. sorting is stable, so equal priorities keep their order
+		List<Rule> sorted = new ArrayList<Rule>(parsedRules);
+		Collections.sort(sorted);
+		for(Rule r : sorted){
 			try{
 				if(r instanceof SubRule){
 					continue;
@@ -252,50 +499,171 @@ public class JavascriptEngine extends Engine {
 	
 	@Override
 	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input) {
+		//rules are evaluated in priority order, so no sorting is required
+		return evaluate(nameSpacePattern, input, false);
+	}
+	
+	@Override
+	public <Input> Rule getBestMatchingRule(String nameSpacePattern, Input input) throws NoMatchingRuleFoundException {
+		List<Rule> matches = evaluate(nameSpacePattern, input, true);
+		if(matches.isEmpty()){
+			throw new NoMatchingRuleFoundException();
+		}
+		return matches.get(0);
+	}
+	
+	/** uses a single engine from the pool for all inputs */
+	@Override
+	public <Input> List<String> getBestOutcomes(String nameSpacePattern, List<Input> inputs) {
 		
-		Pattern pattern = null;
-		if(nameSpacePattern != null){
-			pattern = Pattern.compile(nameSpacePattern);
+		Set<String> selectedNamespaces = nameSpacePattern == null ? null : namespaces.select(nameSpacePattern);
+		
+		Engine engine = null;
+		try {
+			engine = acquireEngine();
+			
+			String[] outcomes = new String[inputs.size()];
+			for(int i = 0; i < outcomes.length; i++){
+				List<Rule> matches = evaluate(engine, selectedNamespaces, inputs.get(i), true);
+				outcomes[i] = matches.isEmpty() ? null : matches.get(0).getOutcome();
+			}
+			return Arrays.asList(outcomes);
+		}finally{
+			releaseEngine(engine);
 		}
+	}
+	
+	private <Input> List<Rule> evaluate(String nameSpacePattern, Input input, boolean firstMatchOnly) {
+		
+		Set<String> selectedNamespaces = nameSpacePattern == null ? null : namespaces.select(nameSpacePattern);
 
 		Engine engine = null;
-		Rule r = null;
 		try {
-			try {
-				engine = engines.borrowObject();
-			} catch (Exception e) {
-				handlePoolProblem(e);
-			}
+			engine = acquireEngine();
 			
+			return evaluate(engine, selectedNamespaces, input, firstMatchOnly);
+		}finally{
+			releaseEngine(engine);
+		}
+	}
+	
+	private <Input> List<Rule> evaluate(Engine engine, Set<String> selectedNamespaces, Input input, boolean firstMatchOnly) {
+		if(fuseRules){
+			if(!engine.fuseAttempted){
+				fuse(engine);
+			}
+			if(engine.fusedFunction != null){
+				try {
+					return evaluateFused(engine, selectedNamespaces, input, firstMatchOnly);
+				} catch (ScriptException e) {
+					//evaluate rule by rule, which fails in the same way, but says which rule failed
+					log.info("Fused rules failed, evaluating them one by one: " + e.getMessage());
+				}
+			}
+		}
+		Rule r = null;
+		ScriptContext context = engine.context;
+		if(context == null){
+			engine.engine.getContext().setAttribute(inputName, input, ScriptContext.ENGINE_SCOPE);
+		}else{
+			//the input is looked up in the global scope, since the engine scope holds nothing by that name
+			Bindings bindings = new SimpleBindings();
+			bindings.put(inputName, input);
+			context.setBindings(bindings, ScriptContext.GLOBAL_SCOPE);
+		}
+		try {
 			List<Rule> matchingRules = new ArrayList<Rule>();
 			for(Entry<Rule, CompiledScript> e : engine.rules.entrySet()){
 				r = e.getKey();
-				if(pattern != null){
-					if(!pattern.matcher(e.getKey().getNamespace()).matches()){
-						continue;
-					}
+				if(selectedNamespaces != null && !selectedNamespaces.contains(r.getNamespace())){
+					continue;
 				}
 			
 				//execute
-				engine.engine.getContext().setAttribute(inputName, input, ScriptContext.ENGINE_SCOPE);
-				Object result = e.getValue().eval();
-				String msg = r.getFullyQualifiedName() + "-{" + r.getExpression() + "}";
+				Object result = context == null ? e.getValue().eval() : e.getValue().eval(context);
 				if(String.valueOf(result).equals("true")){
 					matchingRules.add(r);
-					if(log.isLoggable(Level.INFO)) log.info("matched: " + msg);
+					if(log.isLoggable(Level.INFO)) log.info("matched: " + r.getFullyQualifiedName() + "-{" + r.getExpression() + "}");
+					if(firstMatchOnly){
+						break;
+					}
 				}else{
-                    if(log.isLoggable(Level.INFO)) log.info("unmatched: " + msg);
+                    if(log.isLoggable(Level.INFO)) log.info("unmatched: " + r.getFullyQualifiedName() + "-{" + r.getExpression() + "}");
 				}
 			}
-			//order by priority!
-			Collections.sort(matchingRules);
 			
 			return matchingRules;
 		} catch (ScriptException e) {
 			throw new IllegalArgumentException("Failed to run script " + r.getFullyQualifiedName(), e);
 		}finally{
-			returnEngineToPool(engine);
+			if(context != null){
+				//dont hold on to the input
+				context.setBindings(null, ScriptContext.GLOBAL_SCOPE);
+			}
+		}
+	}
+
+	/**
+	 * Generates all rules into a single function, which is defined in the given engine, e.g.<br>
+	 * <br>
+	 * <code>
+	 * function __rules(input, __enabled, __matches, __firstMatchOnly) {<br>
+	 * &nbsp;&nbsp;var __n = 0, __r;<br>
+	 * &nbsp;&nbsp;if(__enabled[0] &amp;&amp; ((__r = (input.age &lt; 26)) === true || String(__r) === "true")) { __matches[__n++] = 0; if(__firstMatchOnly) return __n; }<br>
+	 * &nbsp;&nbsp;...<br>
+	 * &nbsp;&nbsp;return __n;<br>
+	 * }
+	 * </code><br>
+	 * <br>
+	 * It evaluates rules in priority order, like evaluating them one by one, and returns the number of indices it 
+	 * put into the Java array <code>__matches</code>.  Only rules which compiled on their own are included.  If the 
+	 * function cannot be defined, rules are evaluated one by one.
+	 */
+	private void fuse(Engine engine) {
+		engine.fuseAttempted = true;
+		String name = "__rules_" + engine.generation;
+		StringBuilder script = new StringBuilder();
+		script.append("function ").append(name).append("(").append(inputName).append(", __enabled, __matches, __firstMatchOnly) {\n");
+		script.append("\tvar __n = 0, __r;\n");
+		Rule[] rules = engine.rules.keySet().toArray(new Rule[engine.rules.size()]);
+		for(int i = 0; i < rules.length; i++){
+			script.append("\tif(__enabled[").append(i).append("] && ((__r = (").append(rules[i].getExpression()).append(")) === true || String(__r) === \"true\")) { __matches[__n++] = ")
+				.append(i).append("; if(__firstMatchOnly) return __n; }\n");
+		}
+		script.append("\treturn __n;\n}");
+		try {
+			engine.engine.eval(script.toString());
+			engine.fusedRules = rules;
+			engine.fusedMatches = new int[rules.length];
+			engine.fusedFunction = name;
+		} catch (ScriptException e) {
+			log.warning("Failed to fuse rules, they will be evaluated one by one: " + e.getMessage());
+		}
+	}
+	
+	private <Input> List<Rule> evaluateFused(Engine engine, Set<String> selectedNamespaces, Input input, boolean firstMatchOnly) throws ScriptException {
+		if(engine.enabled == null || engine.selection != selectedNamespaces){
+			boolean[] enabled = new boolean[engine.fusedRules.length];
+			for(int i = 0; i < enabled.length; i++){
+				enabled[i] = selectedNamespaces == null || selectedNamespaces.contains(engine.fusedRules[i].getNamespace());
+			}
+			engine.enabled = enabled;
+			engine.selection = selectedNamespaces;
 		}
+		Object count;
+		try {
+			count = ((Invocable) engine.engine).invokeFunction(engine.fusedFunction, input, engine.enabled, engine.fusedMatches, firstMatchOnly);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e); //should never happen, since it was defined when fusing
+		}
+		int n = ((Number) count).intValue();
+		List<Rule> matchingRules = new ArrayList<Rule>(n);
+		for(int i = 0; i < n; i++){
+			Rule r = engine.fusedRules[engine.fusedMatches[i]];
+			matchingRules.add(r);
+			if(log.isLoggable(Level.INFO)) log.info("matched: " + r.getFullyQualifiedName() + "-{" + r.getExpression() + "}");
+		}
+		return matchingRules;
 	}
 
 	public static final class Builder {
@@ -306,6 +674,8 @@ public class JavascriptEngine extends Engine {
 		private Integer poolSize = GenericObjectPoolConfig.DEFAULT_MAX_TOTAL;
 		private boolean preloadPool = false;
 		private String[] javascriptFilesToLoad = {};
+		private ExecutionMode executionMode = ExecutionMode.POOLED;
+		private boolean fuseRules = false;
 
 		public Builder(Collection<Rule> rules){
 			this.rules = rules;
@@ -336,8 +706,18 @@ public class JavascriptEngine extends Engine {
 			return this;
 		}
 		
+		public Builder withExecutionMode(ExecutionMode executionMode) {
+			this.executionMode = executionMode;
+			return this;
+		}
+		
+		public Builder withFuseRules(boolean fuseRules) {
+			this.fuseRules = fuseRules;
+			return this;
+		}
+		
 		public JavascriptEngine build() throws DuplicateNameException, CompileException, ParseException {
-			return new JavascriptEngine(rules, inputName, throwExceptionIfCompilationFails, poolSize, preloadPool, javascriptFilesToLoad);
+			return new JavascriptEngine(rules, inputName, throwExceptionIfCompilationFails, poolSize, preloadPool, executionMode, fuseRules, javascriptFilesToLoad);
 		}
 	}
 }
\ No newline at end of file
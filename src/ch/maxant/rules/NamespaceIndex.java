@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ *
+ * This file is part of Ant Kutschera's blog.
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Rules grouped by namespace, together with a cache which maps namespace patterns, as passed to
+ * {@link Engine#getMatchingRules(String, Object)}, to the groups they select.  A pattern is only ever
+ * compiled and matched against the namespaces once.  After that, selecting the rules for that
+ * pattern is a single map lookup.<br>
+ * <br>
+ * Namespaces are kept sorted, so that only namespaces starting with the literal prefix of a pattern need
+ * to be matched, e.g. only those starting with "site1" for the pattern "site1\.door\..*".  Patterns without
+ * any special characters select a single namespace directly.
+ * @param <V> the rules of a namespace, or of a selection of namespaces
+ */
+final class NamespaceIndex<V> {
+
+	/** the maximum number of patterns which are cached, after which the cache is cleared */
+	private static final int MAX_CACHED_PATTERNS = 1024;
+
+	private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+	/** builds the value for a pattern out of the values of the namespaces it selects */
+	interface Combiner<V> {
+		V combine(List<V> selected);
+	}
+
+	private final TreeMap<String, V> partitions;
+	private final Combiner<V> combiner;
+	private final ConcurrentHashMap<String, V> selections = new ConcurrentHashMap<String, V>();
+
+	NamespaceIndex(Map<String, V> partitions, Combiner<V> combiner) {
+		this.partitions = new TreeMap<String, V>(partitions);
+		this.combiner = combiner;
+	}
+
+	/** @return the value of the namespaces matching the pattern, which is a regular expression. */
+	V select(String nameSpacePattern) {
+		V selected = selections.get(nameSpacePattern);
+		if(selected == null){
+			if(isLiteral(nameSpacePattern)){
+				selected = partitions.get(nameSpacePattern);
+			}
+			if(selected == null){
+				Pattern pattern = Pattern.compile(nameSpacePattern);
+				String prefix = literalPrefix(nameSpacePattern);
+				SortedMap<String, V> candidates = prefix.isEmpty() ? partitions : partitions.subMap(prefix, prefix + Character.MAX_VALUE);
+				List<V> matches = new ArrayList<V>();
+				for(Map.Entry<String, V> e : candidates.entrySet()){
+					if(pattern.matcher(e.getKey()).matches()){
+						matches.add(e.getValue());
+					}
+				}
+				selected = matches.size() == 1 ? matches.get(0) : combiner.combine(matches);
+			}
+			if(selections.size() >= MAX_CACHED_PATTERNS){
+				selections.clear();
+			}
+			selections.put(nameSpacePattern, selected);
+		}
+		return selected;
+	}
+
+	private static boolean isLiteral(String pattern) {
+		for(int i = 0; i < pattern.length(); i++){
+			if(METACHARACTERS.indexOf(pattern.charAt(i)) > -1){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the characters which every namespace matching the pattern must start with,
+	 * 			which is empty if that cannot easily be determined.
+	 */
+	static String literalPrefix(String pattern) {
+		if(pattern.indexOf('|') > -1){
+			//alternatives may start with anything
+			return "";
+		}
+		StringBuilder prefix = new StringBuilder();
+		for(int i = 0; i < pattern.length(); i++){
+			char c = pattern.charAt(i);
+			if(c == '\\'){
+				//an escaped special character is literal, anything else, like \d, is a character class
+				if(i + 1 < pattern.length() && METACHARACTERS.indexOf(pattern.charAt(i + 1)) > -1){
+					c = pattern.charAt(++i);
+				}else{
+					break;
+				}
+			}else if(METACHARACTERS.indexOf(c) > -1){
+				break;
+			}
+			//a following quantifier might make this character optional
+			if(i + 1 < pattern.length() && "*?{".indexOf(pattern.charAt(i + 1)) > -1){
+				break;
+			}
+			prefix.append(c);
+		}
+		return prefix.toString();
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+/**
+ * A rule expression which has been compiled to a Java class, see {@link Engine.Backend#BYTECODE}.
+ * Implementations are generated by the engine at runtime.  Only public, so that generated classes may implement it.
+ * @param <Input> The input type, see {@link #test(Object)}
+ */
+public interface RulePredicate<Input> {
+
+	/** @return true if the rule matches the given input. */
+	boolean test(Input input);
+}
@@ -0,0 +1,233 @@
+package smartdoor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.relationships.RelationshipTypes.ThingworxEntityTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+
+/**
+ * Asynchronous layer over ConnectedThingClient.invokeService.
+ *
+ * Every call runs on a pool of its own, so independent calls run concurrently and the caller decides whether
+ * and how long to wait. Every call has a deadline: the platform gets the remaining time as its timeout, and
+ * the future fails with a TimeoutException once the deadline passes, also if the call is still queued.
+ */
+public class AsyncPlatformInvoker {
+	private static final int DEFAULT_MAX_CONCURRENT_CALLS = 16;
+
+	private final ConnectedThingClient Client;
+	private final ExecutorService Calls;
+	private final ScheduledThreadPoolExecutor Timeouts;
+
+	public AsyncPlatformInvoker(ConnectedThingClient client) {
+		this(client, DEFAULT_MAX_CONCURRENT_CALLS);
+	}
+
+	/**
+	 * @param client Client to invoke services with
+	 * @param maxConcurrentCalls Maximum number of calls waiting for the platform at the same time, further calls are queued
+	 */
+	public AsyncPlatformInvoker(ConnectedThingClient client, int maxConcurrentCalls) {
+		Client = client;
+		ThreadPoolExecutor calls = new ThreadPoolExecutor(maxConcurrentCalls, maxConcurrentCalls, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonThreads("platform-call-"));
+		calls.allowCoreThreadTimeOut(true);
+		Calls = calls;
+		Timeouts = new ScheduledThreadPoolExecutor(1, new DaemonThreads("platform-call-timeout-"));
+		Timeouts.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Invokes a service of the platform asynchronously.
+	 *
+	 * @param type Type of the entity
+	 * @param entity Name of the entity
+	 * @param service Name of the service
+	 * @param params Parameters of the service
+	 * @param deadline Deadline of the call
+	 * @return Future of the result of the service, which fails with a TimeoutException once the deadline passes
+	 */
+	public CompletableFuture<InfoTable> invoke(ThingworxEntityTypes type, String entity, String service,
+			ValueCollection params, Deadline deadline) {
+		return invoke(type, entity, service, params, deadline, null);
+	}
+
+	/**
+	 * @param finished Run once the call no longer occupies a thread, which may be well after the future timed out, or null
+	 */
+	private CompletableFuture<InfoTable> invoke(final ThingworxEntityTypes type, final String entity, final String service,
+			final ValueCollection params, final Deadline deadline, final Runnable finished) {
+		final CompletableFuture<InfoTable> result = new CompletableFuture<InfoTable>();
+		if(deadline.isExpired()) {
+			result.completeExceptionally(timeout(entity, service));
+			notifyFinished(finished);
+			return result;
+		}
+		final ScheduledFuture<?> timer = Timeouts.schedule(new Runnable() {
+			@Override
+			public void run() {
+				result.completeExceptionally(timeout(entity, service));
+			}
+		}, deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+		result.whenComplete(new BiConsumer<InfoTable, Throwable>() {
+			@Override
+			public void accept(InfoTable table, Throwable t) {
+				timer.cancel(false);
+			}
+		});
+		
+		try {
+			Calls.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long remaining = deadline.remainingMillis();
+						if(result.isDone() || remaining <= 0) {
+							//timed out while queued
+							result.completeExceptionally(timeout(entity, service));
+							return;
+						}
+						result.complete(Client.invokeService(type, entity, service, params, (int) Math.min(remaining, Integer.MAX_VALUE)));
+					} catch (Throwable t) {
+						result.completeExceptionally(t);
+					} finally {
+						notifyFinished(finished);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+			notifyFinished(finished);
+		}
+		return result;
+	}
+
+	/**
+	 * Service call of the platform, to be invoked later.
+	 */
+	public static final class Call {
+		private final ThingworxEntityTypes type;
+		private final String entity, service;
+		private final ValueCollection params;
+
+		public Call(ThingworxEntityTypes type, String entity, String service, ValueCollection params) {
+			this.type = type;
+			this.entity = entity;
+			this.service = service;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * Invokes many services, at most maxConcurrentCalls at a time, so that a large batch neither floods the platform
+	 * nor queues up behind a deadline which it cannot meet. Each call gets its own budget, starting when it is invoked.
+	 * A call which timed out still counts until the platform returns, since it still occupies a thread until then.
+	 *
+	 * @param calls Calls to invoke, in order
+	 * @param maxConcurrentCalls Maximum number of calls of this batch running at the same time
+	 * @param budgetMillis Budget of each call
+	 * @return Future of the result per call, in the same order
+	 */
+	public List<CompletableFuture<InfoTable>> invokeAll(List<Call> calls, int maxConcurrentCalls, long budgetMillis) {
+		Batch batch = new Batch(calls, maxConcurrentCalls, budgetMillis);
+		batch.startCalls();
+		return batch.results;
+	}
+
+	/**
+	 * Calls of invokeAll which are started as slots become free.
+	 */
+	private final class Batch implements Runnable {
+		private final List<Call> calls;
+		private final long budgetMillis;
+		private final List<CompletableFuture<InfoTable>> results;
+		private final AtomicInteger next = new AtomicInteger();
+		/** Calls which may still be started before one finishes */
+		private final AtomicInteger slots;
+		/** Requests to start calls, only the thread which raised it from 0 starts them, so that a call which finishes at once does not recurse */
+		private final AtomicInteger starting = new AtomicInteger();
+
+		private Batch(List<Call> calls, int maxConcurrentCalls, long budgetMillis) {
+			this.calls = calls;
+			this.budgetMillis = budgetMillis;
+			this.slots = new AtomicInteger(Math.max(1, maxConcurrentCalls));
+			results = new ArrayList<CompletableFuture<InfoTable>>(calls.size());
+			for(int i = 0; i < calls.size(); i++) {
+				results.add(new CompletableFuture<InfoTable>());
+			}
+		}
+
+		/** Runs when a call no longer occupies a thread */
+		@Override
+		public void run() {
+			slots.incrementAndGet();
+			startCalls();
+		}
+
+		private void startCalls() {
+			if(starting.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				while(next.get() < calls.size() && slots.get() > 0) {
+					slots.decrementAndGet();
+					final int i = next.getAndIncrement();
+					Call call = calls.get(i);
+					invoke(call.type, call.entity, call.service, call.params, Deadline.after(budgetMillis), this).whenComplete(new BiConsumer<InfoTable, Throwable>() {
+						@Override
+						public void accept(InfoTable table, Throwable t) {
+							if(t == null) {
+								results.get(i).complete(table);
+							} else {
+								results.get(i).completeExceptionally(t);
+							}
+						}
+					});
+				}
+			} while(starting.decrementAndGet() != 0);
+		}
+	}
+
+	/**
+	 * Waits for the call, which completes by its deadline at the latest.
+	 *
+	 * @param call Call to wait for
+	 * @return Result of the call
+	 * @throws Exception The failure of the call, e.g. a TimeoutException
+	 */
+	public static InfoTable await(CompletableFuture<InfoTable> call) throws Exception {
+		try {
+			return call.get();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static void notifyFinished(Runnable finished) {
+		if(finished != null) {
+			finished.run();
+		}
+	}
+
+	private static TimeoutException timeout(String entity, String service) {
+		return new TimeoutException("Call of " + entity + "." + service + " did not complete by its deadline");
+	}
+}
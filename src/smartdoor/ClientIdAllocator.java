@@ -0,0 +1,159 @@
+package smartdoor;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocates client IDs, starting at 1, always handing out the lowest free ID.
+ *
+ * An allocated ID is reserved at once, so clients provisioning concurrently never get the same ID.
+ * The reservation becomes permanent when the client registers (claim), and the ID becomes free again
+ * when the client is removed (release). A reservation which is never claimed expires after the
+ * reservation timeout, e.g. because provisioning of the client failed.
+ *
+ * All IDs in use or reserved are kept in a BitSet, so allocation costs a scan over a few machine words
+ * rather than a lookup per candidate ID.
+ */
+public class ClientIdAllocator {
+	private static final long DEFAULT_RESERVATION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final long ReservationTimeoutNanos;
+	/** IDs which are claimed or reserved */
+	private final BitSet Used = new BitSet();
+	/** Deadline of every reservation by ID */
+	private final HashMap<Integer, Long> Reservations = new HashMap<Integer, Long>();
+	/** Reservations in the order in which they expire, which is the order they were made in, since the timeout is fixed */
+	private final ArrayDeque<Reservation> Expiry = new ArrayDeque<Reservation>();
+	/** No ID below this one is free */
+	private int LowestFree = 1;
+
+	private static final class Reservation {
+		private final int id;
+		private final long deadline;
+
+		private Reservation(int id, long deadline) {
+			this.id = id;
+			this.deadline = deadline;
+		}
+	}
+
+	public ClientIdAllocator() {
+		this(DEFAULT_RESERVATION_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param reservationTimeoutMillis Time after which an allocated ID which was not claimed is free again
+	 */
+	public ClientIdAllocator(long reservationTimeoutMillis) {
+		ReservationTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(reservationTimeoutMillis);
+	}
+
+	/**
+	 * Reserves the lowest free ID.
+	 *
+	 * @return Reserved ID
+	 */
+	public synchronized int allocate() {
+		long now = System.nanoTime();
+		expire(now);
+		int id = Used.nextClearBit(LowestFree);
+		Used.set(id);
+		LowestFree = id + 1;
+		Long deadline = now + ReservationTimeoutNanos;
+		Reservations.put(id, deadline);
+		Expiry.add(new Reservation(id, deadline));
+		return id;
+	}
+
+	/**
+	 * Reserves the lowest free IDs in one step.
+	 *
+	 * @param count Number of IDs to reserve
+	 * @return Reserved IDs, in ascending order
+	 */
+	public synchronized int[] allocate(int count) {
+		int[] ids = new int[count];
+		for(int i = 0; i < count; i++) {
+			ids[i] = allocate();
+		}
+		return ids;
+	}
+
+	/**
+	 * Marks the ID as used by a registered client, whether or not it was allocated here.
+	 *
+	 * @param id ID of the registered client
+	 */
+	public synchronized void claim(int id) {
+		Reservations.remove(id);
+		Used.set(id);
+	}
+
+	/**
+	 * Frees the ID, whether it is claimed or only reserved.
+	 *
+	 * @param id ID of the removed client
+	 */
+	public synchronized void release(int id) {
+		releaseOrCancel(id);
+	}
+
+	/**
+	 * Frees the ID of a deleted client in one step: its claim if the client registered, otherwise its reservation.
+	 * A caller which does not know whether the client registered must use this, rather than release followed by
+	 * cancelReservation, since the ID may be allocated to another client in between, whose reservation would be cancelled.
+	 *
+	 * @param id ID of the deleted client
+	 * @return False if the ID was neither claimed nor reserved
+	 */
+	public synchronized boolean releaseOrCancel(int id) {
+		Reservations.remove(id);
+		return free(id);
+	}
+
+	/**
+	 * Frees the ID if it is reserved but was never claimed, e.g. because the client was deleted before it registered.
+	 *
+	 * @param id ID of the client
+	 * @return False if the ID was not reserved
+	 */
+	public synchronized boolean cancelReservation(int id) {
+		if(Reservations.remove(id) == null) {
+			return false;
+		}
+		free(id);
+		return true;
+	}
+
+	/**
+	 * @return Number of IDs which are reserved but not yet claimed
+	 */
+	public synchronized int getReservationCount() {
+		expire(System.nanoTime());
+		return Reservations.size();
+	}
+
+	private boolean free(int id) {
+		if(id > 0 && Used.get(id)) {
+			Used.clear(id);
+			LowestFree = Math.min(LowestFree, id);
+			return true;
+		}
+		return false;
+	}
+
+	private void expire(long now) {
+		Reservation r;
+		while((r = Expiry.peek()) != null && now - r.deadline >= 0) {
+			Expiry.poll();
+			//the reservation may have been claimed, released or even made again since, so only its own deadline counts
+			Long deadline = Reservations.get(r.id);
+			if(deadline != null && deadline == r.deadline) {
+				Reservations.remove(r.id);
+				free(r.id);
+			}
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package smartdoor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Thread-safe registry of the connected door clients, indexed by ID, by name and by location.
+ * Lookups are lock-free, changes are serialized so that the indexes always agree.
+ * Every change increments the version, so views of the registry can be rebuilt only when it changed.
+ * The ordered list of all clients is such a view: an immutable snapshot which is shared by all readers
+ * until the next change, so reading it repeatedly costs nothing. Every snapshot carries the version it was taken at.
+ *
+ * The most recent changes are kept in a bounded journal, so a caller which knows the version it last saw
+ * can fetch only what changed since, rather than all clients. Once that version is older than the journal,
+ * the caller has to read all clients again.
+ */
+public class ClientRegistry {
+	private final ConcurrentHashMap<Integer, Client> ById = new ConcurrentHashMap<Integer, Client>();
+	private final ConcurrentHashMap<String, Client> ByName = new ConcurrentHashMap<String, Client>();
+	/** Clients by location. Clients without a location are not indexed */
+	private final ConcurrentHashMap<String, Location> ByLocation = new ConcurrentHashMap<String, Location>();
+	private volatile long Version;
+	/** Ring buffer of the most recent changes, the one of version v is at index v % length */
+	private final Change[] Journal;
+	private volatile Snapshot Snapshot = new Snapshot(0, Collections.<Client>emptyList());
+
+	private static final int DEFAULT_JOURNAL_SIZE = 4096;
+
+	private static final Comparator<Client> BY_ID = new Comparator<Client>() {
+		@Override
+		public int compare(Client a, Client b) {
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Immutable list of clients, ordered by ID, as they were at one version of the registry.
+	 */
+	public static final class Snapshot {
+		private final long version;
+		private final List<Client> clients;
+
+		private Snapshot(long version, List<Client> clients) {
+			this.version = version;
+			this.clients = clients;
+		}
+
+		/** @return Version of the registry the clients were taken at */
+		public long getVersion() {
+			return version;
+		}
+
+		/** @return The clients, unmodifiable */
+		public List<Client> getClients() {
+			return clients;
+		}
+
+		/**
+		 * @param afterId Only clients with a higher ID are returned, e.g. the highest ID of the previous page
+		 * @param limit Maximum number of clients
+		 * @return The clients with the lowest IDs above afterId, a view of this snapshot
+		 */
+		public List<Client> page(int afterId, int limit) {
+			//binary search for the first client with a higher ID
+			int from = 0, to = clients.size();
+			while(from < to) {
+				int mid = (from + to) >>> 1;
+				if(clients.get(mid).id <= afterId) {
+					from = mid + 1;
+				} else {
+					to = mid;
+				}
+			}
+			return clients.subList(from, (int) Math.min((long) from + Math.max(0, limit), clients.size()));
+		}
+	}
+
+	/** Clients at one location, ordered by ID, and their number, since the size of a skip list is not constant */
+	private static final class Location {
+		private final ConcurrentSkipListMap<Integer, Client> clients = new ConcurrentSkipListMap<Integer, Client>();
+		private volatile int count;
+	}
+
+	/**
+	 * Kind of a change of the registry.
+	 */
+	public enum ChangeType {
+		ADDED, UPDATED, REMOVED
+	}
+
+	/**
+	 * Immutable entry of the journal.
+	 */
+	public static final class Change {
+		private final long version;
+		private final ChangeType type;
+		private final Client client;
+
+		private Change(long version, ChangeType type, Client client) {
+			this.version = version;
+			this.type = type;
+			this.client = client;
+		}
+
+		/** @return Version of the registry after the change */
+		public long getVersion() {
+			return version;
+		}
+
+		public ChangeType getType() {
+			return type;
+		}
+
+		/** @return The client after the change, or the removed client */
+		public Client getClient() {
+			return client;
+		}
+	}
+
+	/**
+	 * Immutable entry of a connected client.
+	 */
+	public static final class Client {
+		private final int id;
+		private final String name;
+		private final String location;
+
+		private Client(int id, String name, String location) {
+			this.id = id;
+			this.name = name;
+			this.location = location;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getLocation() {
+			return location;
+		}
+	}
+
+	public ClientRegistry() {
+		this(DEFAULT_JOURNAL_SIZE);
+	}
+
+	/**
+	 * @param journalSize Number of most recent changes which are kept in the journal
+	 */
+	public ClientRegistry(int journalSize) {
+		Journal = new Change[journalSize];
+	}
+
+	/**
+	 * Registers a client. Registering a client again with the same ID and name updates its location.
+	 *
+	 * @param id ID of the client
+	 * @param name Name of the client
+	 * @param location Location of the client
+	 * @return False if the ID or the name is already registered for a different client
+	 */
+	public synchronized boolean add(int id, String name, String location) {
+		Client byId = ById.get(id);
+		Client byName = ByName.get(name);
+		if((byId != null && !byId.name.equals(name)) || (byName != null && byName.id != id)) {
+			return false;
+		}
+		Client client = new Client(id, name, location);
+		ById.put(id, client);
+		ByName.put(name, client);
+		if(byId != null) {
+			unindexLocation(byId);
+		}
+		indexLocation(client);
+		record(byId == null ? ChangeType.ADDED : ChangeType.UPDATED, client);
+		return true;
+	}
+
+	/**
+	 * Registers many clients in one step, see add.
+	 *
+	 * @param ids IDs of the clients
+	 * @param names Names of the clients
+	 * @param locations Locations of the clients
+	 * @return Per client, false if its ID or name is already registered for a different client
+	 */
+	public synchronized boolean[] addAll(int[] ids, String[] names, String[] locations) {
+		boolean[] added = new boolean[ids.length];
+		for(int i = 0; i < ids.length; i++) {
+			added[i] = add(ids[i], names[i], locations[i]);
+		}
+		return added;
+	}
+
+	/**
+	 * Removes many clients in one step.
+	 *
+	 * @param ids IDs of the clients
+	 * @return The removed clients, clients which were not registered are left out
+	 */
+	public synchronized List<Client> removeAll(Collection<Integer> ids) {
+		List<Client> removed = new ArrayList<Client>();
+		for(Integer id : ids) {
+			Client client = remove(id);
+			if(client != null) {
+				removed.add(client);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @param id ID of the client
+	 * @return The removed client or null if no client has the ID
+	 */
+	public synchronized Client remove(int id) {
+		Client client = ById.remove(id);
+		if(client != null) {
+			ByName.remove(client.name);
+			unindexLocation(client);
+			record(ChangeType.REMOVED, client);
+		}
+		return client;
+	}
+
+	public Client getById(int id) {
+		return ById.get(id);
+	}
+
+	public Client getByName(String name) {
+		return ByName.get(name);
+	}
+
+	public boolean containsName(String name) {
+		return ByName.containsKey(name);
+	}
+
+	public int size() {
+		return ById.size();
+	}
+
+	/**
+	 * Copies the clients at the location from its index, so no other client is looked at.
+	 * The copy is taken while no change is made, so it matches the version exactly.
+	 *
+	 * @param location Location of the clients
+	 * @return Snapshot of the clients at the location, empty if there are none
+	 */
+	public synchronized Snapshot getByLocation(String location) {
+		Location clients = location == null ? null : ByLocation.get(location);
+		return new Snapshot(Version, clients == null ? Collections.<Client>emptyList()
+				: Collections.unmodifiableList(new ArrayList<Client>(clients.clients.values())));
+	}
+
+	/**
+	 * @return Number of clients per location, ordered by location
+	 */
+	public Map<String, Integer> getLocationCounts() {
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for(Map.Entry<String, Location> e : ByLocation.entrySet()) {
+			int count = e.getValue().count;
+			if(count > 0) {
+				counts.put(e.getKey(), count);
+			}
+		}
+		return counts;
+	}
+
+	private void indexLocation(Client client) {
+		if(client.location == null) {
+			return;
+		}
+		Location clients = ByLocation.get(client.location);
+		if(clients == null) {
+			clients = new Location();
+			ByLocation.put(client.location, clients);
+		}
+		if(clients.clients.put(client.id, client) == null) {
+			clients.count++;
+		}
+	}
+
+	private void unindexLocation(Client client) {
+		Location clients = client.location == null ? null : ByLocation.get(client.location);
+		if(clients != null && clients.clients.remove(client.id) != null && --clients.count == 0) {
+			ByLocation.remove(client.location);
+		}
+	}
+
+	/**
+	 * @return Number of changes since the registry was created
+	 */
+	public long getVersion() {
+		return Version;
+	}
+
+	/**
+	 * @param sinceVersion Version the caller last saw
+	 * @return The changes after that version, oldest first, or null if some of them are no longer in the journal,
+	 *         or the version is unknown, so that the caller has to read all clients again
+	 */
+	public synchronized List<Change> getChangesSince(long sinceVersion) {
+		long version = Version;
+		if(sinceVersion < version - Journal.length || sinceVersion < 0 || sinceVersion > version) {
+			return null;
+		}
+		List<Change> changes = new ArrayList<Change>((int) (version - sinceVersion));
+		for(long v = sinceVersion + 1; v <= version; v++) {
+			changes.add(Journal[(int) (v % Journal.length)]);
+		}
+		return changes;
+	}
+
+	/** Increments the version and records the change in the journal, overwriting the oldest one */
+	private void record(ChangeType type, Client client) {
+		long version = Version + 1;
+		Journal[(int) (version % Journal.length)] = new Change(version, type, client);
+		Version = version;
+	}
+
+	/**
+	 * @return All clients, ordered by ID, as an unmodifiable snapshot which does not change with the registry
+	 */
+	public List<Client> getClients() {
+		return getSnapshot().clients;
+	}
+
+	/**
+	 * @return Snapshot of all clients, shared by all callers until the registry changes
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot snapshot = Snapshot;
+		if(snapshot.version != Version) {
+			synchronized(this) {
+				//rebuilt while no change is made, so the clients match the version exactly
+				snapshot = Snapshot;
+				if(snapshot.version != Version) {
+					List<Client> clients = new ArrayList<Client>(ById.values());
+					Collections.sort(clients, BY_ID);
+					snapshot = new Snapshot(Version, Collections.unmodifiableList(clients));
+					Snapshot = snapshot;
+				}
+			}
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,26 @@
+package smartdoor;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of numbered daemon threads for the pools of this client, so that no pool keeps the JVM alive on shutdown.
+ */
+final class DaemonThreads implements ThreadFactory {
+	private final String Prefix;
+	private final AtomicInteger Count = new AtomicInteger();
+
+	/**
+	 * @param prefix Prefix of the thread names, which are numbered from 1
+	 */
+	DaemonThreads(String prefix) {
+		Prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, Prefix + Count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,41 @@
+package smartdoor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which an operation must be done, e.g. a service call including all the platform calls it makes.
+ * Calls made on behalf of the operation get the remaining time as their timeout, rather than a fixed timeout each,
+ * so a chain of slow calls cannot take longer than the operation as a whole.
+ */
+public final class Deadline {
+	private final long DeadlineNanos;
+
+	private Deadline(long deadlineNanos) {
+		DeadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * @param millis Budget in milliseconds, starting now
+	 * @return Deadline at the end of the budget
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * @return Remaining time in milliseconds, 0 if the deadline has passed
+	 */
+	public long remainingMillis() {
+		long remaining = DeadlineNanos - System.nanoTime();
+		return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining);
+	}
+
+	public boolean isExpired() {
+		return DeadlineNanos - System.nanoTime() <= 0;
+	}
+
+	@Override
+	public String toString() {
+		return "Deadline [remainingMillis=" + remainingMillis() + "]";
+	}
+}
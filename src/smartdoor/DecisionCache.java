@@ -0,0 +1,197 @@
+package smartdoor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent cache of rule decisions, keyed by the attributes of a person.
+ * Every entry is tagged with the version of the rule snapshot it was evaluated against.
+ * Entries of an older version are treated as misses, so a rule change invalidates
+ * the whole cache atomically as soon as the new snapshot is published.
+ *
+ * The least recently used entries are evicted first. To keep threads from contending for one lock,
+ * entries are spread over segments by the hash of their key, each an access-ordered map with its own
+ * lock and an equal share of the capacity, so eviction is LRU within a segment. Small caches have only
+ * one segment, so eviction is exact.
+ */
+public class DecisionCache {
+	private static final int MAX_SEGMENTS = 16;
+	/** Minimum capacity of a segment, so that an uneven spread of keys cannot leave much of the capacity unused */
+	private static final int MIN_SEGMENT_SIZE = 64;
+
+	private final long ttlMillis;
+	private final Segment[] segments;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Cached result of one rule evaluation.
+	 */
+	public static final class Decision {
+		private final long version;
+		private final String outcome;
+		private final long expiresAt;
+
+		private Decision(long version, String outcome, long expiresAt) {
+			this.version = version;
+			this.outcome = outcome;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return Outcome of the best matching rule or null if no rule matched
+		 */
+		public String getOutcome() {
+			return outcome;
+		}
+	}
+
+	private static final class Key {
+		private final String name, surname;
+		private final int hash;
+
+		private Key(String name, String surname) {
+			this.name = name;
+			this.surname = surname;
+			this.hash = 31 * (name == null ? 0 : name.hashCode()) + (surname == null ? 0 : surname.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return (name == null ? other.name == null : name.equals(other.name))
+					&& (surname == null ? other.surname == null : surname.equals(other.surname));
+		}
+	}
+
+	/** Entries of one segment, in the order in which they were last used */
+	private final class Segment extends LinkedHashMap<Key, Decision> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		private Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param maxSize Maximum number of cached decisions. The least recently used entries are evicted first.
+	 * @param ttlMillis Time to live of an entry in milliseconds or 0 to keep entries until they are evicted or invalidated
+	 */
+	public DecisionCache(int maxSize, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		int count = maxSize <= 0 ? 0 : Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			// the remainder goes to the first segments, so the capacities add up to maxSize
+			segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+		}
+	}
+
+	private Segment segment(Key key) {
+		int h = key.hash ^ (key.hash >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	/**
+	 * Looks up a decision for a person.
+	 *
+	 * @param name
+	 * @param surname
+	 * @param version Version of the rule snapshot the caller would evaluate against
+	 * @return Cached decision or null if there is no valid entry
+	 */
+	public Decision get(String name, String surname, long version) {
+		Decision decision = null;
+		if (segments.length > 0) {
+			Key key = new Key(name, surname);
+			Segment segment = segment(key);
+			synchronized (segment) {
+				// an access-ordered map reorders its entries on get, so reading needs the lock as well
+				decision = segment.get(key);
+			}
+		}
+		if (decision == null || decision.version != version
+				|| (ttlMillis > 0 && decision.expiresAt < System.currentTimeMillis())) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return decision;
+	}
+
+	/**
+	 * Stores a decision. Once the cache is full, the least recently used entries are evicted.
+	 *
+	 * @param name
+	 * @param surname
+	 * @param version Version of the rule snapshot the decision was evaluated against
+	 * @param outcome Outcome of the best matching rule or null if no rule matched
+	 */
+	public void put(String name, String surname, long version, String outcome) {
+		if (segments.length == 0) {
+			return;
+		}
+		Key key = new Key(name, surname);
+		long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+		Segment segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, new Decision(version, outcome, expiresAt));
+		}
+	}
+
+	/**
+	 * Drops all entries. Correctness does not depend on this, since entries of an
+	 * older rule version are never returned, but it frees the memory right away.
+	 */
+	public void invalidate() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,84 @@
+package smartdoor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded lane for door decisions, i.e. checkRules and checkRulesBatch.
+ *
+ * Decisions are CPU bound, so they run on a pool sized to the processors rather than on as many threads as the SDK
+ * dispatches services on. A bounded queue holds the decisions waiting for a thread. Once it is full, further decisions
+ * are rejected at once, so that a door gets an answer rather than waiting behind a backlog which it cannot outrun.
+ * Nothing on the lane waits for the platform, platform calls run on the AsyncPlatformInvoker.
+ */
+public class DecisionLane {
+	private static final Logger LOG = LoggerFactory.getLogger(DecisionLane.class);
+
+	private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private final ThreadPoolExecutor Decisions;
+	private final AtomicLong Rejected = new AtomicLong();
+
+	public DecisionLane() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param threads Maximum number of decisions running at the same time
+	 * @param queueSize Maximum number of decisions waiting for a thread, further ones are rejected
+	 */
+	public DecisionLane(int threads, int queueSize) {
+		Decisions = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreads("decision-"));
+		Decisions.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs a decision on the lane and waits for it.
+	 *
+	 * @param decision Decision to make
+	 * @return Result of the decision
+	 * @throws RejectedExecutionException If the lane is full
+	 * @throws InterruptedException If the caller was interrupted while waiting, the decision may still run
+	 * @throws Exception The failure of the decision
+	 */
+	public <T> T decide(Callable<T> decision) throws Exception {
+		try {
+			return Decisions.submit(decision).get();
+		} catch (RejectedExecutionException e) {
+			long rejected = Rejected.incrementAndGet();
+			LOG.warn("Decision lane is full, decision rejected, {} rejected so far.", rejected);
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Number of decisions waiting for a thread
+	 */
+	public int getWaiting() {
+		return Decisions.getQueue().size();
+	}
+
+	/**
+	 * @return Number of decisions which were rejected, since the lane was full
+	 */
+	public long getRejected() {
+		return Rejected.get();
+	}
+}
@@ -0,0 +1,104 @@
+package smartdoor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects property writes and keeps only the latest value per property, until they are flushed as one batch,
+ * e.g. in the next processScanRequest. A burst of changes, like many clients connecting at once, thus results
+ * in a single write per property and flush rather than one per change. The interval between flushes, e.g. the
+ * scan interval, is the window within which writes are coalesced, so the coalescer keeps no timing of its own.
+ */
+public class PropertyCoalescer {
+	private static final Logger LOG = LoggerFactory.getLogger(PropertyCoalescer.class);
+
+	/**
+	 * Writes a property, e.g. VirtualThing.setProperty.
+	 */
+	public interface PropertyWriter {
+		void write(String name, Object value) throws Exception;
+	}
+
+	/** Wraps values, since the map does not accept null */
+	private static final class Value {
+		private final Object value;
+
+		private Value(Object value) {
+			this.value = value;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Value> Pending = new ConcurrentHashMap<String, Value>();
+	private final AtomicLong Requested = new AtomicLong();
+	private final AtomicLong Written = new AtomicLong();
+
+	/**
+	 * Records a write, replacing any pending value of the property.
+	 *
+	 * @param name Name of the property
+	 * @param value New value of the property
+	 */
+	public void set(String name, Object value) {
+		Pending.put(name, new Value(value));
+		Requested.incrementAndGet();
+	}
+
+	/**
+	 * Writes the pending values. A value which could not be written stays pending.
+	 *
+	 * @param writer Writer of the properties
+	 * @return Number of properties which were written
+	 */
+	public synchronized int flush(PropertyWriter writer) {
+		int written = 0;
+		Map<String, Value> failed = new HashMap<String, Value>();
+		for(Map.Entry<String, Value> e : Pending.entrySet()) {
+			//only remove the value which is written, a newer one is left for the next flush
+			if(!Pending.remove(e.getKey(), e.getValue())) {
+				continue;
+			}
+			try {
+				writer.write(e.getKey(), e.getValue().value);
+				written++;
+			} catch(Exception ex) {
+				failed.put(e.getKey(), e.getValue());
+				LOG.error("Property {} could not be written.", e.getKey(), ex);
+			}
+		}
+		//keep failed values for the next flush, unless a newer one was set in the meantime
+		for(Map.Entry<String, Value> e : failed.entrySet()) {
+			Pending.putIfAbsent(e.getKey(), e.getValue());
+		}
+		Written.addAndGet(written);
+		if(written > 0) {
+			LOG.debug("Wrote {} coalesced properties, {} writes saved so far.", written, getSaved());
+		}
+		return written;
+	}
+
+	/**
+	 * @return Number of writes which were requested
+	 */
+	public long getRequested() {
+		return Requested.get();
+	}
+
+	/**
+	 * @return Number of writes which succeeded
+	 */
+	public long getWritten() {
+		return Written.get();
+	}
+
+	/**
+	 * @return Number of writes which were saved by coalescing, not counting those which are still pending
+	 */
+	public long getSaved() {
+		return Math.max(0, Requested.get() - Written.get() - Pending.size());
+	}
+}
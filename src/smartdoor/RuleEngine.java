@@ -1,13 +1,57 @@
 package smartdoor;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ch.maxant.rules.*;
 
 public class RuleEngine {
-	private List<Rule> RuleSet;
+	private static final Logger LOG = LoggerFactory.getLogger(RuleEngine.class);
+	private static final String NAMESPACE = "ch.maxant.produkte";
+	
+	private static final int DECISION_CACHE_SIZE = 10000;
+	
+	private volatile RuleSnapshot Snapshot;
+	private final DecisionCache Decisions;
+	private final RuleStore Store;
+
+	/**
+	 * Versioned view of the rule set together with the compiled Engine.
+	 * A new snapshot is published after every change of the rule set, so readers
+	 * never compile. Changes are compiled incrementally into a copy of the engine, which is published
+	 * with the new version, so the rules and the engine of a snapshot never change once it is published.
+	 */
+	public static final class RuleSnapshot {
+		private final long version;
+		private final List<Rule> rules;
+		private final Engine engine;
+
+		private RuleSnapshot(long version, List<Rule> rules, Engine engine) {
+			this.version = version;
+			this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+			this.engine = engine;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public List<Rule> getRules() {
+			return rules;
+		}
+
+		public Engine getEngine() {
+			return engine;
+		}
+	}
 
 	public class Person{
 		private String PersonName, PersonSurname;
@@ -36,30 +80,218 @@ public class RuleEngine {
 	}
 	
 	RuleEngine(){
-		Rule Whitelist = new Rule("Whitelist", "input.PersonName==\"Alice\"", "Whitelist", 1, "ch.maxant.produkte", null);
-		Rule Surname = new Rule("Surname", "input.PersonSurname==\"Mustermann\"", "Surname", 1, "ch.maxant.produkte", null);
+		this(DECISION_CACHE_SIZE, 0);
+	}
+	
+	/**
+	 * @param cacheSize Maximum number of cached decisions, 0 disables the cache
+	 * @param cacheTtlMillis Time to live of cached decisions in milliseconds, 0 for no expiry
+	 */
+	RuleEngine(int cacheSize, long cacheTtlMillis){
+		this(cacheSize, cacheTtlMillis, null);
+	}
+	
+	RuleEngine(RuleStore store){
+		this(DECISION_CACHE_SIZE, 0, store);
+	}
+	
+	/**
+	 * @param cacheSize Maximum number of cached decisions, 0 disables the cache
+	 * @param cacheTtlMillis Time to live of cached decisions in milliseconds, 0 for no expiry
+	 * @param store Store from which the rules are recovered and to which every change is written, 
+	 *              or null to keep rules in memory only. A new store is initialized with the default rules.
+	 */
+	RuleEngine(int cacheSize, long cacheTtlMillis, RuleStore store){
+		Decisions = new DecisionCache(cacheSize, cacheTtlMillis);
+		Store = store;
+		List<Rule> rules;
+		if(store == null) {
+			rules = defaultRules();
+		}else {
+			try {
+				Map<String, String> stored = store.recover();
+				if(store.existed()) {
+					rules = new ArrayList<Rule>(stored.size());
+					for(Map.Entry<String, String> e : stored.entrySet()) {
+						rules.add(new Rule(e.getKey(), e.getValue(), e.getKey(), 1, NAMESPACE, null));
+					}
+				}else {
+					rules = defaultRules();
+					for(Rule r : rules) {
+						store.appendAdd(r.getName(), r.getExpression());
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Rules could not be recovered from the rule store", e);
+			}
+		}
 		
-		RuleSet = Arrays.asList(Whitelist,Surname);
+		Engine engine;
+		try {
+			//all recovered rules are compiled at once, rather than replaying every change against the engine
+			engine = new Engine(rules, true);
+		} catch (Exception e) {
+			LOG.error("Rules could not be compiled at once, compiling them one by one.", e);
+			rules = new ArrayList<Rule>(rules);
+			engine = compileEach(rules);
+		}
+		Snapshot = new RuleSnapshot(1, rules, engine);
 	}
 	
 	/**
-	 *
+	 * Compiles the rules one by one, so that a single bad rule, e.g. one stored by an older version,
+	 * does not keep the client from starting. Rules which fail are logged and removed from the list,
+	 * but stay in the rule store, so they can still be replaced.
+	 */
+	private static Engine compileEach(List<Rule> rules) {
+		Engine engine;
+		try {
+			engine = new Engine(Collections.<Rule>emptyList(), true);
+		} catch (Exception e) {
+			throw new IllegalStateException("Engine could not be created", e);
+		}
+		for(Iterator<Rule> it = rules.iterator(); it.hasNext();) {
+			Rule r = it.next();
+			try {
+				engine.addRule(r);
+			}catch(Exception e) {
+				LOG.error("Rule {} with expression {} could not be compiled and is skipped.", new Object[]{r.getName(), r.getExpression(), e});
+				it.remove();
+			}
+		}
+		return engine;
+	}
+	
+	private static List<Rule> defaultRules() {
+		Rule Whitelist = new Rule("Whitelist", "input.PersonName==\"Alice\"", "Whitelist", 1, NAMESPACE, null);
+		Rule Surname = new Rule("Surname", "input.PersonSurname==\"Mustermann\"", "Surname", 1, NAMESPACE, null);
+		return Arrays.asList(Whitelist,Surname);
+	}
+	
+	/**
+	 * Returns the currently published rule snapshot.
+	 * 
+	 * @return Snapshot of rules and compiled engine
+	 */
+	public RuleSnapshot getSnapshot() {
+		return Snapshot;
+	}
+	
+	/**
+	 * Returns the cache of decisions made by checkRules, e.g. to read its hit and miss counts.
+	 * 
+	 * @return Decision cache
+	 */
+	public DecisionCache getDecisionCache() {
+		return Decisions;
+	}
+	
+	/**
+	 * Adds a rule and publishes a new snapshot. Only the new rule is compiled.
+	 * If the rule cannot be added, or not be written to the rule store, the current snapshot stays active.
 	 * 
 	 * @param name
 	 * @param condition
-	 * @return
+	 * @return New number of rules, or -1 if the rule could not be added
 	 */
-	public int addRule(String name,String condition) {
-		condition = condition.replaceAll("Person", "input.Person");
-		Rule CustomRule = new Rule(name, condition, name, 1, "ch.maxant.produkte", null);
+	public synchronized int addRule(String name,String condition) {
+		Rule CustomRule = createRule(name, condition);
+		RuleSnapshot current = Snapshot;
+		try {
+			//the change is made to a copy, the engine of a published snapshot never changes
+			Engine next = current.getEngine().copy();
+			next.addRule(CustomRule);
+			if(Store != null) {
+				Store.appendAdd(CustomRule.getName(), CustomRule.getExpression());
+			}
+			ArrayList<Rule> var = new ArrayList<Rule>(current.getRules());
+			var.add(CustomRule);
+			publish(new RuleSnapshot(current.getVersion()+1, var, next));
+		}catch(Exception e) {
+			LOG.error("Rule {} could not be added.", name, e);
+			return -1;
+		}
+		return Snapshot.getRules().size();
+	}
+	
+	/**
+	 * Removes a rule and publishes a new snapshot. No rule is recompiled.
+	 * If the rule cannot be removed, or the removal not be written to the rule store, the current snapshot stays active.
+	 * 
+	 * @param name
+	 * @return New number of rules, or -1 if the rule could not be removed
+	 */
+	public synchronized int removeRule(String name) {
+		RuleSnapshot current = Snapshot;
+		try {
+			Engine next = current.getEngine().copy();
+			Rule removed = next.removeRule(NAMESPACE + "." + name);
+			if(removed != null) {
+				if(Store != null) {
+					Store.appendRemove(removed.getName());
+				}
+				ArrayList<Rule> var = new ArrayList<Rule>(current.getRules());
+				var.remove(removed);
+				publish(new RuleSnapshot(current.getVersion()+1, var, next));
+			}
+		}catch(Exception e) {
+			LOG.error("Rule {} could not be removed.", name, e);
+			return -1;
+		}
+		return Snapshot.getRules().size();
+	}
+	
+	/**
+	 * Replaces the condition of a rule and publishes a new snapshot.
+	 * Only the rule and the rules referencing it are recompiled.
+	 * If the rule cannot be replaced, or the change not be written to the rule store, the current snapshot stays active.
+	 * 
+	 * @param name
+	 * @param condition
+	 * @return Number of rules, or -1 if the rule could not be replaced
+	 */
+	public synchronized int replaceRule(String name,String condition) {
+		Rule CustomRule = createRule(name, condition);
+		RuleSnapshot current = Snapshot;
 		try {
-		ArrayList<Rule> var = new ArrayList<Rule>(RuleSet);
-		var.add(CustomRule);
-		RuleSet=var;
+			Engine next = current.getEngine().copy();
+			Rule replaced = next.replaceRule(CustomRule);
+			if(replaced != null) {
+				if(Store != null) {
+					Store.appendReplace(CustomRule.getName(), CustomRule.getExpression());
+				}
+				ArrayList<Rule> var = new ArrayList<Rule>(current.getRules());
+				var.set(var.indexOf(replaced), CustomRule);
+				publish(new RuleSnapshot(current.getVersion()+1, var, next));
+			}
 		}catch(Exception e) {
-			System.out.println(e);
+			LOG.error("Rule {} could not be replaced.", name, e);
+			return -1;
 		}
-		return RuleSet.size();
+		return Snapshot.getRules().size();
+	}
+	
+	/**
+	 * Makes the snapshot visible to checkRules. Decisions are cached per version, so those of older snapshots
+	 * are never returned for the new one, invalidating only frees their memory.
+	 */
+	private void publish(RuleSnapshot next) {
+		Snapshot = next;
+		Decisions.invalidate();
+	}
+	
+	/**
+	 * @param name "name surname", the surname is null if it is missing or empty
+	 */
+	private Person parsePerson(String name) {
+		String[] splited = name.split(" ");
+		String surname = splited.length < 2 || splited[1].isEmpty()?null:splited[1];
+		return new Person(splited[0],surname);
+	}
+	
+	private Rule createRule(String name,String condition) {
+		condition = condition.replaceAll("Person", "input.Person");
+		return new Rule(name, condition, name, 1, NAMESPACE, null);
 	}
 	
 
@@ -74,11 +306,60 @@ public class RuleEngine {
 	 * @throws NoMatchingRuleFoundException
 	 */
 	public String checkRules(String name) throws DuplicateNameException, CompileException, ParseException, NoMatchingRuleFoundException {
-		String[] splited = name.split(" ");		
-		Engine eng = new Engine(RuleSet, true);
-		Person test =new Person(splited[0],splited[1].isEmpty()?null:splited[1]);
-		String rs = eng.getBestOutcome(test); 
+		Person test = parsePerson(name);
+		RuleSnapshot snapshot = Snapshot;
+		DecisionCache.Decision cached = Decisions.get(test.getPersonName(), test.getPersonSurname(), snapshot.getVersion());
+		if(cached != null) {
+			if(cached.getOutcome() == null) {
+				throw new NoMatchingRuleFoundException();
+			}
+			return cached.getOutcome();
+		}
+		
+		Engine eng = snapshot.getEngine();
+		String rs;
+		try {
+			rs = eng.getBestOutcome(test); 
+		} catch (NoMatchingRuleFoundException e) {
+			Decisions.put(test.getPersonName(), test.getPersonSurname(), snapshot.getVersion(), null);
+			throw e;
+		}
+		Decisions.put(test.getPersonName(), test.getPersonSurname(), snapshot.getVersion(), rs);
 		
 		return rs;
 	}
+	
+	/**
+	 * Checks the rules for many persons at once. All persons are evaluated against the same snapshot,
+	 * and those without a cached decision are evaluated in one call to the engine.
+	 * 
+	 * @param names Names in the same format as for checkRules, i.e. "name surname"
+	 * @return Outcome per name, in the same order, or null if no rule matched
+	 */
+	public List<String> checkRulesBatch(List<String> names) {
+		RuleSnapshot snapshot = Snapshot;
+		String[] outcomes = new String[names.size()];
+		List<Person> pending = new ArrayList<Person>();
+		List<Integer> pendingIndices = new ArrayList<Integer>();
+		for(int i = 0; i < outcomes.length; i++) {
+			Person p = parsePerson(names.get(i));
+			DecisionCache.Decision cached = Decisions.get(p.getPersonName(), p.getPersonSurname(), snapshot.getVersion());
+			if(cached != null) {
+				outcomes[i] = cached.getOutcome();
+			}else {
+				pending.add(p);
+				pendingIndices.add(i);
+			}
+		}
+		
+		if(!pending.isEmpty()) {
+			List<String> evaluated = snapshot.getEngine().getBestOutcomes(null, pending);
+			for(int j = 0; j < evaluated.size(); j++) {
+				Person p = pending.get(j);
+				outcomes[pendingIndices.get(j)] = evaluated.get(j);
+				Decisions.put(p.getPersonName(), p.getPersonSurname(), snapshot.getVersion(), evaluated.get(j));
+			}
+		}
+		return Arrays.asList(outcomes);
+	}
 }
@@ -0,0 +1,393 @@
+package smartdoor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local persistent store of the rules of a RuleEngine, so that rules survive a restart of the client.
+ *
+ * The store consists of two files in its directory:
+ * - rules.snapshot: all rules at the time of the last compaction, in the order in which they were added
+ * - rules.log: every add, remove and replace since that snapshot, appended and forced to disk one by one
+ *
+ * Once the log holds more records than the snapshot holds rules (but at least MIN_COMPACTION_RECORDS),
+ * it is compacted into a new snapshot, so the log never grows beyond the size of the rule set and
+ * recovery reads each rule at most about twice. The snapshot is written to a temporary file and renamed,
+ * so it is either complete or not there at all, and so is the empty log which follows it. Both files carry the
+ * generation of the compaction which wrote them, and a log from an older generation is ignored, since its records
+ * are already part of the snapshot. If the new log cannot be renamed into place, no change is appended to the old
+ * one, since it would be ignored, instead the next change compacts again first.
+ * Records of the log are checksummed, and a record which was torn by a crash ends the replay and is cut off.
+ *
+ * Expressions are stored as evaluated by the engine, i.e. after RuleEngine has prefixed the person attributes.
+ *
+ * Both files are read into heap buffers rather than memory-mapped, since Windows refuses to truncate or
+ * replace a file while a mapping of it is live, and a mapping is only released once it is garbage collected.
+ */
+public class RuleStore {
+	private static final Logger LOG = LoggerFactory.getLogger(RuleStore.class);
+
+	private static final int SNAPSHOT_MAGIC = 0x52534e31; // "RSN1"
+	private static final int LOG_MAGIC = 0x524c4731; // "RLG1"
+	private static final int LOG_HEADER_SIZE = 12;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MIN_COMPACTION_RECORDS = 1024;
+
+	private static final byte ADD = 1, REMOVE = 2, REPLACE = 3;
+
+	private final File SnapshotFile, SnapshotTempFile, LogFile, LogTempFile;
+	private final boolean SyncOnWrite;
+
+	/** The rules as recovered and changed since, by name */
+	private final LinkedHashMap<String, String> Rules = new LinkedHashMap<String, String>();
+	private RandomAccessFile Log;
+	private long Generation;
+	private int LogRecords;
+	/** Whether the log is of an older generation than the snapshot, since it could not be replaced after a compaction */
+	private boolean LogStale;
+	private boolean Existed;
+	private long RecoveryMillis;
+	private int RecoveredSnapshotRules, RecoveredLogRecords;
+
+	/**
+	 * @param directory Directory of the store files, which is created if necessary
+	 */
+	public RuleStore(File directory) {
+		this(directory, true);
+	}
+
+	/**
+	 * @param directory Directory of the store files, which is created if necessary
+	 * @param syncOnWrite Whether every change is forced to disk before it is acknowledged.
+	 *                    Without it, changes which were made just before a crash of the machine may be lost.
+	 */
+	public RuleStore(File directory, boolean syncOnWrite) {
+		SnapshotFile = new File(directory, "rules.snapshot");
+		SnapshotTempFile = new File(directory, "rules.snapshot.tmp");
+		LogFile = new File(directory, "rules.log");
+		LogTempFile = new File(directory, "rules.log.tmp");
+		SyncOnWrite = syncOnWrite;
+	}
+
+	/**
+	 * Reads the snapshot and replays the log. Must be called once, before any change is appended.
+	 *
+	 * @return Expressions by rule name, in the order in which the rules were added
+	 * @throws IOException If the store cannot be read or opened for writing
+	 */
+	public synchronized Map<String, String> recover() throws IOException {
+		long start = System.nanoTime();
+		File directory = LogFile.getParentFile();
+		if(directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create rule store directory " + directory);
+		}
+		Existed = SnapshotFile.exists() || LogFile.exists();
+		Rules.clear();
+		Generation = 0;
+		LogStale = false;
+		if(SnapshotFile.exists()) {
+			readSnapshot();
+		}
+		RecoveredSnapshotRules = Rules.size();
+
+		Log = new RandomAccessFile(LogFile, "rw");
+		long valid = replayLog();
+		if(valid < 0) {
+			//no log of the current generation, so start a new one
+			Log.setLength(0);
+			Log.writeInt(LOG_MAGIC);
+			Log.writeLong(Generation);
+			sync();
+		} else if(valid < Log.length()) {
+			LOG.warn("Rule store log {} ends with an incomplete record after {} bytes, which is discarded.", LogFile, valid);
+			Log.setLength(valid);
+			sync();
+		}
+		Log.seek(Log.length());
+		RecoveredLogRecords = LogRecords;
+		RecoveryMillis = (System.nanoTime() - start) / 1000000;
+		LOG.info("Recovered {} rules from {} snapshot rules and {} log records in {} ms.",
+				new Object[]{Rules.size(), RecoveredSnapshotRules, RecoveredLogRecords, RecoveryMillis});
+		return Collections.unmodifiableMap(new LinkedHashMap<String, String>(Rules));
+	}
+
+	private void readSnapshot() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(SnapshotFile, "r");
+		try {
+			ByteBuffer buffer = readFully(file.getChannel(), file.length());
+			if(buffer.remaining() < 16 || buffer.getInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Rule store snapshot " + SnapshotFile + " is not a snapshot");
+			}
+			Generation = buffer.getLong();
+			int count = buffer.getInt();
+			for(int i = 0; i < count; i++) {
+				Rules.put(readString(buffer), readString(buffer));
+			}
+		} catch(RuntimeException e) {
+			//e.g. BufferUnderflowException, since snapshots are renamed into place once complete, this is not a torn write
+			throw new IOException("Rule store snapshot " + SnapshotFile + " is corrupt", e);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Applies all intact records of the log to the rules.
+	 *
+	 * @return Length of the intact part of the log, or -1 if the log is missing or of an older generation
+	 */
+	private long replayLog() throws IOException {
+		LogRecords = 0;
+		long length = Log.length();
+		if(length < LOG_HEADER_SIZE) {
+			return -1;
+		}
+		ByteBuffer buffer = readFully(Log.getChannel(), length);
+		if(buffer.getInt() != LOG_MAGIC || buffer.getLong() != Generation) {
+			return -1;
+		}
+		CRC32 crc = new CRC32();
+		while(buffer.remaining() >= RECORD_HEADER_SIZE) {
+			int start = buffer.position();
+			int size = buffer.getInt();
+			int checksum = buffer.getInt();
+			if(size <= 0 || size > buffer.remaining()) {
+				return start;
+			}
+			byte[] payload = new byte[size];
+			buffer.get(payload);
+			crc.reset();
+			crc.update(payload, 0, size);
+			if((int) crc.getValue() != checksum) {
+				return start;
+			}
+			apply(ByteBuffer.wrap(payload));
+			LogRecords++;
+		}
+		return buffer.position();
+	}
+
+	private void apply(ByteBuffer record) {
+		byte op = record.get();
+		String name = readString(record);
+		if(op == REMOVE) {
+			Rules.remove(name);
+		} else {
+			Rules.put(name, readString(record));
+		}
+	}
+
+	/**
+	 * @return Whether the store held any rules or changes before it was recovered,
+	 *         i.e. false the first time the store is used in its directory
+	 */
+	public synchronized boolean existed() {
+		return Existed;
+	}
+
+	public synchronized void appendAdd(String name, String expression) throws IOException {
+		append(ADD, name, expression);
+	}
+
+	public synchronized void appendRemove(String name) throws IOException {
+		append(REMOVE, name, null);
+	}
+
+	public synchronized void appendReplace(String name, String expression) throws IOException {
+		append(REPLACE, name, expression);
+	}
+
+	private void append(byte op, String name, String expression) throws IOException {
+		if(Log == null) {
+			throw new IllegalStateException("Rule store must be recovered before changes are appended");
+		}
+		if(LogStale) {
+			compact();
+		}
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] expressionBytes = expression == null ? null : expression.getBytes(StandardCharsets.UTF_8);
+		int size = 1 + 4 + nameBytes.length + (expressionBytes == null ? 0 : 4 + expressionBytes.length);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + size);
+		record.position(RECORD_HEADER_SIZE);
+		record.put(op);
+		putBytes(record, nameBytes);
+		if(expressionBytes != null) {
+			putBytes(record, expressionBytes);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_SIZE, size);
+		record.putInt(0, size);
+		record.putInt(4, (int) crc.getValue());
+		record.rewind();
+
+		long position = Log.length();
+		try {
+			Log.getChannel().write(record, position);
+			sync();
+		} catch(IOException e) {
+			//do not leave a partial record behind, which would hide all later records from recovery
+			Log.setLength(position);
+			throw e;
+		}
+
+		if(op == REMOVE) {
+			Rules.remove(name);
+		} else {
+			Rules.put(name, expression);
+		}
+		LogRecords++;
+		if(LogRecords >= Math.max(MIN_COMPACTION_RECORDS, Rules.size())) {
+			try {
+				compact();
+			} catch(IOException e) {
+				//the change is durable in the log, compaction is retried with the next change
+				LOG.warn("Compaction of rule store " + SnapshotFile + " failed.", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes all rules to a new snapshot and starts an empty log.
+	 *
+	 * @throws IOException If the snapshot or the log cannot be written. If the snapshot was renamed into place, but the
+	 *                     log was not, it holds all changes, and changes are only appended once a compaction succeeded.
+	 */
+	public synchronized void compact() throws IOException {
+		long start = System.nanoTime();
+		long generation = Generation + 1;
+		RandomAccessFile file = new RandomAccessFile(SnapshotTempFile, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			buffer.putInt(SNAPSHOT_MAGIC).putLong(generation).putInt(Rules.size());
+			for(Map.Entry<String, String> rule : Rules.entrySet()) {
+				buffer = putString(channel, buffer, rule.getKey());
+				buffer = putString(channel, buffer, rule.getValue());
+			}
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+		file = new RandomAccessFile(LogTempFile, "rw");
+		try {
+			file.setLength(0);
+			file.writeInt(LOG_MAGIC);
+			file.writeLong(generation);
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+		Files.move(SnapshotTempFile.toPath(), SnapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		//from here on, the old log is ignored because of its generation, so nothing may be appended to it
+		Generation = generation;
+		LogRecords = 0;
+		LogStale = true;
+		//closed first, since Windows refuses to replace an open file
+		Log.close();
+		Files.move(LogTempFile.toPath(), LogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Log = new RandomAccessFile(LogFile, "rw");
+		Log.seek(Log.length());
+		LogStale = false;
+		LOG.info("Compacted rule store to {} rules in {} ms.", Rules.size(), (System.nanoTime() - start) / 1000000);
+	}
+
+	public synchronized void close() throws IOException {
+		if(Log != null) {
+			Log.close();
+			Log = null;
+		}
+	}
+
+	/**
+	 * @return Duration of the last recovery in milliseconds
+	 */
+	public synchronized long getRecoveryMillis() {
+		return RecoveryMillis;
+	}
+
+	/**
+	 * @return Number of rules read from the snapshot during the last recovery
+	 */
+	public synchronized int getRecoveredSnapshotRules() {
+		return RecoveredSnapshotRules;
+	}
+
+	/**
+	 * @return Number of log records replayed during the last recovery
+	 */
+	public synchronized int getRecoveredLogRecords() {
+		return RecoveredLogRecords;
+	}
+
+	private void sync() throws IOException {
+		if(SyncOnWrite) {
+			Log.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * @return A heap buffer with the first length bytes of the channel, or fewer if the file is shorter
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long length) throws IOException {
+		if(length > Integer.MAX_VALUE) {
+			throw new IOException("Rule store file of " + length + " bytes is too large");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+		while(buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+			//read until full or end of file
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Adds the string to the buffer, after writing the buffer to the channel if it is full.
+	 *
+	 * @return The buffer, which is larger than the given one if the string did not fit into an empty buffer
+	 */
+	private static ByteBuffer putString(FileChannel channel, ByteBuffer buffer, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if(buffer.remaining() < 4 + bytes.length) {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+			if(buffer.capacity() < 4 + bytes.length) {
+				buffer = ByteBuffer.allocate(4 + bytes.length);
+			}
+		}
+		putBytes(buffer, bytes);
+		return buffer;
+	}
+}
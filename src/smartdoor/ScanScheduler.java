@@ -0,0 +1,240 @@
+package smartdoor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.thingworx.communications.client.things.VirtualThing;
+
+/**
+ * Calls processScanRequest of VirtualThings periodically, each at its own interval.
+ *
+ * Scans are triggered at a fixed rate by a single timer thread and run on a small pool, so things are scanned
+ * in parallel and a slow thing neither delays the others nor makes the cadence drift. If the previous scan of
+ * a thing is still running when its next scan is due, that scan is skipped rather than queued, so a slow thing
+ * does not pile up work. The lag of every scan, i.e. how long after it was due it started, is recorded.
+ */
+public class ScanScheduler {
+	private static final Logger LOG = LoggerFactory.getLogger(ScanScheduler.class);
+
+	private final ScheduledThreadPoolExecutor Timer;
+	private final ExecutorService Scans;
+	private final ConcurrentHashMap<VirtualThing, ScannedThing> Things = new ConcurrentHashMap<VirtualThing, ScannedThing>();
+
+	/**
+	 * Scan statistics of one thing.
+	 */
+	public static final class ScanStatistics {
+		private final String name;
+		private final long intervalMillis, scans, skipped, failures, lastLagMillis, maxLagMillis, lastDurationMillis;
+
+		private ScanStatistics(String name, long intervalMillis, long scans, long skipped, long failures, long lastLagMillis, long maxLagMillis, long lastDurationMillis) {
+			this.name = name;
+			this.intervalMillis = intervalMillis;
+			this.scans = scans;
+			this.skipped = skipped;
+			this.failures = failures;
+			this.lastLagMillis = lastLagMillis;
+			this.maxLagMillis = maxLagMillis;
+			this.lastDurationMillis = lastDurationMillis;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getIntervalMillis() {
+			return intervalMillis;
+		}
+
+		/** @return Number of scans which ran */
+		public long getScans() {
+			return scans;
+		}
+
+		/** @return Number of scans which were skipped, because the previous scan was still running */
+		public long getSkipped() {
+			return skipped;
+		}
+
+		/** @return Number of scans which threw an exception */
+		public long getFailures() {
+			return failures;
+		}
+
+		/** @return Time between when the last scan was due and when it started */
+		public long getLastLagMillis() {
+			return lastLagMillis;
+		}
+
+		public long getMaxLagMillis() {
+			return maxLagMillis;
+		}
+
+		public long getLastDurationMillis() {
+			return lastDurationMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "ScanStatistics [name=" + name + ", intervalMillis=" + intervalMillis + ", scans=" + scans + ", skipped=" + skipped + ", failures=" + failures
+					+ ", lastLagMillis=" + lastLagMillis + ", maxLagMillis=" + maxLagMillis + ", lastDurationMillis=" + lastDurationMillis + "]";
+		}
+	}
+
+	/**
+	 * @param threads Number of things which can be scanned at the same time
+	 */
+	public ScanScheduler(int threads) {
+		Timer = new ScheduledThreadPoolExecutor(1, new DaemonThreads("scan-timer-"));
+		Timer.setRemoveOnCancelPolicy(true);
+		Scans = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreads("scan-"));
+	}
+
+	/**
+	 * Scans the thing every intervalMillis, starting now. Scheduling a thing again changes its interval,
+	 * and a scan which is still running delays the first scan at the new interval, as it would any other.
+	 *
+	 * @param thing Thing to scan
+	 * @param intervalMillis Interval between the starts of two scans
+	 */
+	public synchronized void schedule(VirtualThing thing, long intervalMillis) {
+		ScannedThing previous = Things.get(thing);
+		ScannedThing scanned = new ScannedThing(thing, intervalMillis, previous == null ? new AtomicBoolean() : previous.running);
+		Things.put(thing, scanned);
+		if(previous != null) {
+			previous.timer.cancel(false);
+		}
+		scanned.timer = Timer.scheduleAtFixedRate(scanned, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Scans exactly the given things, e.g. those bound to a client: things which are not scheduled yet are scheduled,
+	 * and things which are no longer given are unscheduled. Things which are scheduled already keep their cadence.
+	 *
+	 * @param things Things to scan
+	 * @param intervalMillis Interval between the starts of two scans of each thing
+	 */
+	public synchronized void scheduleAll(Collection<? extends VirtualThing> things, long intervalMillis) {
+		for(VirtualThing thing : things) {
+			ScannedThing scanned = Things.get(thing);
+			if(scanned == null || scanned.intervalMillis != intervalMillis) {
+				schedule(thing, intervalMillis);
+			}
+		}
+		for(VirtualThing thing : new ArrayList<VirtualThing>(Things.keySet())) {
+			if(!things.contains(thing)) {
+				unschedule(thing);
+			}
+		}
+	}
+
+	/**
+	 * Stops scanning the thing. A scan which is running is not interrupted.
+	 *
+	 * @param thing Thing to stop scanning
+	 */
+	public synchronized void unschedule(VirtualThing thing) {
+		ScannedThing scanned = Things.remove(thing);
+		if(scanned != null) {
+			scanned.timer.cancel(false);
+		}
+	}
+
+	/**
+	 * @return Scan statistics of all scheduled things
+	 */
+	public List<ScanStatistics> getStatistics() {
+		List<ScanStatistics> statistics = new ArrayList<ScanStatistics>();
+		for(ScannedThing s : Things.values()) {
+			statistics.add(new ScanStatistics(s.thing.getName(), s.intervalMillis, s.scans.get(), s.skipped.get(), s.failures.get(),
+					s.lastLagMillis, s.maxLagMillis.get(), s.lastDurationMillis));
+		}
+		return statistics;
+	}
+
+	/**
+	 * Stops all scans and waits for running scans to finish.
+	 *
+	 * @param timeoutMillis Maximum time to wait
+	 * @return False if scans were still running after the timeout
+	 */
+	public boolean shutdown(long timeoutMillis) throws InterruptedException {
+		Timer.shutdownNow();
+		Scans.shutdown();
+		return Scans.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** A scheduled thing, whose run method is triggered by the timer and hands the scan to the pool */
+	private final class ScannedThing implements Runnable {
+		private final VirtualThing thing;
+		private final long intervalMillis;
+		private final long firstDueNanos = System.nanoTime();
+		/** Whether a scan is running, shared with the previous schedule of the thing */
+		private final AtomicBoolean running;
+		private final AtomicLong scans = new AtomicLong(), skipped = new AtomicLong(), failures = new AtomicLong(), maxLagMillis = new AtomicLong();
+		private volatile long lastLagMillis, lastDurationMillis;
+		/** Number of times the scan was due, only touched by the timer thread */
+		private long ticks;
+		private volatile ScheduledFuture<?> timer;
+
+		private ScannedThing(VirtualThing thing, long intervalMillis, AtomicBoolean running) {
+			this.thing = thing;
+			this.intervalMillis = intervalMillis;
+			this.running = running;
+		}
+
+		@Override
+		public void run() {
+			//the scan was due at the fixed rate, whenever the timer got round to it
+			final long dueNanos = firstDueNanos + TimeUnit.MILLISECONDS.toNanos(intervalMillis * ticks++);
+			if(!running.compareAndSet(false, true)) {
+				skipped.incrementAndGet();
+				return;
+			}
+			try {
+				Scans.execute(new Runnable() {
+					@Override
+					public void run() {
+						scan(dueNanos);
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				//shutting down
+				running.set(false);
+			}
+		}
+
+		private void scan(long dueNanos) {
+			long start = System.nanoTime();
+			long lag = TimeUnit.NANOSECONDS.toMillis(Math.max(0, start - dueNanos));
+			lastLagMillis = lag;
+			long max;
+			while(lag > (max = maxLagMillis.get()) && !maxLagMillis.compareAndSet(max, lag)) {
+			}
+			try {
+				thing.processScanRequest();
+			} catch(Exception e) {
+				failures.incrementAndGet();
+				LOG.error("Scan of {} failed.", thing.getName(), e);
+			} finally {
+				scans.incrementAndGet();
+				lastDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				running.set(false);
+			}
+		}
+	}
+}
@@ -18,12 +18,22 @@ import com.thingworx.relationships.RelationshipTypes.ThingworxEntityTypes;
 import com.thingworx.types.BaseTypes;
 import com.thingworx.types.InfoTable;
 import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.BooleanPrimitive;
 import com.thingworx.types.primitives.IPrimitiveType;
 import com.thingworx.types.primitives.InfoTablePrimitive;
 import com.thingworx.types.primitives.IntegerPrimitive;
 import com.thingworx.types.primitives.NumberPrimitive;
 import com.thingworx.types.primitives.StringPrimitive;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
 import ch.maxant.rules.CompileException;
 import ch.maxant.rules.DuplicateNameException;
 import ch.maxant.rules.NoMatchingRuleFoundException;
@@ -72,7 +82,35 @@ Aspects:
 			                    		  "isPersistent:FALSE", 
 			                    		  "isReadOnly:FALSE", 
 			                    		  "pushType:ALWAYS", 
-			                              "defaultValue:0"})//,
+			                              "defaultValue:0"}),
+	@ThingworxPropertyDefinition(name="PendingPlatformCalls",       
+			                     description="Number of createClient and deleteClient calls which the platform has not completed yet",
+			                     baseType="NUMBER",
+			                     aspects={"dataChangeType:VALUE",
+			                    		  "dataChangeThreshold:0",
+			                    		  "cacheTime:0", 
+			                    		  "isPersistent:FALSE", 
+			                    		  "isReadOnly:TRUE", 
+			                    		  "pushType:ALWAYS", 
+			                              "defaultValue:0"}),
+	@ThingworxPropertyDefinition(name="FailedPlatformCalls",       
+			                     description="Number of createClient and deleteClient calls which the platform failed",
+			                     baseType="NUMBER",
+			                     aspects={"dataChangeType:VALUE",
+			                    		  "dataChangeThreshold:0",
+			                    		  "cacheTime:0", 
+			                    		  "isPersistent:FALSE", 
+			                    		  "isReadOnly:TRUE", 
+			                    		  "pushType:ALWAYS", 
+			                              "defaultValue:0"}),
+	@ThingworxPropertyDefinition(name="LastPlatformCallError",       
+			                     description="Call and error of the last createClient or deleteClient call which the platform failed",
+			                     baseType="STRING",
+			                     aspects={"dataChangeType:VALUE",
+			                    		  "cacheTime:0", 
+			                    		  "isPersistent:FALSE", 
+			                    		  "isReadOnly:TRUE", 
+			                    		  "pushType:ALWAYS"})//,
 })
 
 /**
@@ -83,8 +121,24 @@ Aspects:
 public class ServerThing extends VirtualThing {
 
 	private static final Logger LOG = LoggerFactory.getLogger(ServerThing.class);
-	private InfoTable ConnectedClientsInfo = new InfoTable(getDataShapeDefinition("SmartDoorClientDataShape"));
-	private RuleEngine eng = new RuleEngine();
+	private final ClientRegistry Clients = new ClientRegistry();
+	private final ClientIdAllocator ClientIds = new ClientIdAllocator();
+	private final RuleEngine eng;
+	private final AsyncPlatformInvoker Platform;
+	/** Door decisions, bounded on their own and never waiting for the platform */
+	private final DecisionLane Decisions = new DecisionLane();
+	/** Guards the counts of the platform calls which services do not wait for, so that their properties are set in order */
+	private final Object PlatformCallsLock = new Object();
+	private int PendingPlatformCalls;
+	private long FailedPlatformCalls;
+	/** Writes of properties which change with every client, pushed once per scan rather than once per change */
+	private final PropertyCoalescer Properties = new PropertyCoalescer();
+	/** Time the platform has for a call, counted from when a service makes it */
+	private static final long PLATFORM_BUDGET_MILLIS = 10000;
+	/** Maximum number of clients returned by one page of getConnectedClients */
+	private static final int MAX_CLIENTS_PAGE_SIZE = 1000;
+	/** Maximum number of platform calls running at the same time for one bulk service call */
+	private static final int BULK_CONCURRENCY = 8;
 
 	/**
 	 * A custom constructor. The Constructor is needed to call initializeFromAnnotations,
@@ -98,8 +152,20 @@ public class ServerThing extends VirtualThing {
 	 * URL: https://developer.thingworx.com/resources/guides/thingworx-java-sdk-quickstart/creating-data-model
 	 */
 	public ServerThing(String name, String description, ConnectedThingClient client) {
+		this(name, description, client, null);
+	}
+	
+	/**
+	 * @param name The name of the thing.
+	 * @param description A description of the thing.
+	 * @param client The client that this thing is associated with.
+	 * @param ruleStoreDirectory Directory in which rules are persisted across restarts, or null to keep them in memory only.
+	 */
+	public ServerThing(String name, String description, ConnectedThingClient client, File ruleStoreDirectory) {
 		super(name, description, client);
 		this.initializeFromAnnotations();
+		eng = ruleStoreDirectory == null ? new RuleEngine() : new RuleEngine(new RuleStore(ruleStoreDirectory));
+		Platform = new AsyncPlatformInvoker(client);
 		
 		// Data Shape definition that is used by the delivery stop event
 		// The event only has one field, the message
@@ -109,7 +175,70 @@ public class ServerThing extends VirtualThing {
         fields.addFieldDefinition(new FieldDefinition("Location", BaseTypes.STRING));
         defineDataShapeDefinition("ClientEntryShape", fields);
         
-        ConnectedClientsInfo = new InfoTable(getDataShapeDefinition("ClientEntryShape"));
+        // Data Shape definition for the connected clients, see getConnectedClients
+        FieldDefinitionCollection pageFields = new FieldDefinitionCollection();
+        pageFields.addFieldDefinition(new FieldDefinition("ID", BaseTypes.INTEGER));
+        pageFields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        pageFields.addFieldDefinition(new FieldDefinition("Location", BaseTypes.STRING));
+        pageFields.addFieldDefinition(new FieldDefinition("version", BaseTypes.NUMBER));
+        pageFields.addFieldDefinition(new FieldDefinition("total", BaseTypes.INTEGER));
+        defineDataShapeDefinition("ClientPageShape", pageFields);
+        
+        // Data Shape definition for the changes of the connected clients, see getConnectedClientsChanges
+        FieldDefinitionCollection changeFields = new FieldDefinitionCollection();
+        changeFields.addFieldDefinition(new FieldDefinition("version", BaseTypes.NUMBER));
+        changeFields.addFieldDefinition(new FieldDefinition("change", BaseTypes.STRING));
+        changeFields.addFieldDefinition(new FieldDefinition("ID", BaseTypes.INTEGER));
+        changeFields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        changeFields.addFieldDefinition(new FieldDefinition("Location", BaseTypes.STRING));
+        defineDataShapeDefinition("ClientChangeShape", changeFields);
+        
+        // Data Shape definition for the number of connected clients per location
+        FieldDefinitionCollection locationFields = new FieldDefinitionCollection();
+        locationFields.addFieldDefinition(new FieldDefinition("Location", BaseTypes.STRING));
+        locationFields.addFieldDefinition(new FieldDefinition("count", BaseTypes.INTEGER));
+        defineDataShapeDefinition("ClientLocationCountShape", locationFields);
+        
+        // Data Shape definition for the statistics of the decision cache
+        FieldDefinitionCollection cacheFields = new FieldDefinitionCollection();
+        cacheFields.addFieldDefinition(new FieldDefinition("hits", BaseTypes.NUMBER));
+        cacheFields.addFieldDefinition(new FieldDefinition("misses", BaseTypes.NUMBER));
+        cacheFields.addFieldDefinition(new FieldDefinition("evictions", BaseTypes.NUMBER));
+        cacheFields.addFieldDefinition(new FieldDefinition("size", BaseTypes.NUMBER));
+        defineDataShapeDefinition("DecisionCacheStatisticsShape", cacheFields);
+        
+        // Data Shape definition for the statistics of the coalesced property writes
+        FieldDefinitionCollection propertyWriteFields = new FieldDefinitionCollection();
+        propertyWriteFields.addFieldDefinition(new FieldDefinition("requested", BaseTypes.NUMBER));
+        propertyWriteFields.addFieldDefinition(new FieldDefinition("written", BaseTypes.NUMBER));
+        propertyWriteFields.addFieldDefinition(new FieldDefinition("saved", BaseTypes.NUMBER));
+        defineDataShapeDefinition("PropertyWriteStatisticsShape", propertyWriteFields);
+        
+        // Data Shape definitions for checking the rules of many persons at once
+        FieldDefinitionCollection personFields = new FieldDefinitionCollection();
+        personFields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        defineDataShapeDefinition("RulePersonShape", personFields);
+        
+        FieldDefinitionCollection decisionFields = new FieldDefinitionCollection();
+        decisionFields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        decisionFields.addFieldDefinition(new FieldDefinition("granted", BaseTypes.BOOLEAN));
+        decisionFields.addFieldDefinition(new FieldDefinition("outcome", BaseTypes.STRING));
+        defineDataShapeDefinition("RuleDecisionShape", decisionFields);
+        
+        // Data Shape definitions for provisioning and decommissioning many clients at once
+        FieldDefinitionCollection provisioningFields = new FieldDefinitionCollection();
+        provisioningFields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        provisioningFields.addFieldDefinition(new FieldDefinition("description", BaseTypes.STRING));
+        provisioningFields.addFieldDefinition(new FieldDefinition("thingTemplateName", BaseTypes.STRING));
+        provisioningFields.addFieldDefinition(new FieldDefinition("Location", BaseTypes.STRING));
+        defineDataShapeDefinition("ClientProvisioningShape", provisioningFields);
+        
+        FieldDefinitionCollection resultFields = new FieldDefinitionCollection();
+        resultFields.addFieldDefinition(new FieldDefinition("ID", BaseTypes.INTEGER));
+        resultFields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        resultFields.addFieldDefinition(new FieldDefinition("success", BaseTypes.BOOLEAN));
+        resultFields.addFieldDefinition(new FieldDefinition("error", BaseTypes.STRING));
+        defineDataShapeDefinition("ClientResultShape", resultFields);
 	}
 	
 	/**	
@@ -134,6 +263,12 @@ public class ServerThing extends VirtualThing {
 	@Override
 	public void processScanRequest() {	
 		try {
+			Properties.flush(new PropertyCoalescer.PropertyWriter() {
+				@Override
+				public void write(String name, Object value) throws Exception {
+					setProperty(name, value);
+				}
+			});
 			this.updateSubscribedProperties(1000);
 			this.updateSubscribedEvents(1000);
 		}
@@ -181,7 +316,8 @@ public class ServerThing extends VirtualThing {
 	}
 	
 	/**
-	 * This method returns an open ID.
+	 * This method returns an open ID. The ID is reserved for the new client until it is added by addClient,
+	 * so concurrent calls never return the same ID. A reservation which is not claimed expires after a while.
 	 * 
 	 * @return Open ID for new Client
 	 * @throws Exception
@@ -190,16 +326,7 @@ public class ServerThing extends VirtualThing {
 	@ThingworxServiceDefinition(name="getOpenClientID", description="Returns an open ID for the new Client.")
 	@ThingworxServiceResult(name="result", description="Open ID for new Client.", baseType="INTEGER")
  	public int getOpenClientID() throws Exception {
-		int ID=1;
-		ValueCollection filter=new ValueCollection();
-		filter.put("name", new StringPrimitive("ClientThing_"+ID));
-		//Check for free id	
-		for(;ConnectedClientsInfo.find(filter)!=null;) {
-			ID++;
-			filter.put("name", new StringPrimitive("ClientThing_"+ID));
-		}
-		
-		return ID;
+		return ClientIds.allocate();
 	}
 	
 	/**
@@ -216,14 +343,13 @@ public class ServerThing extends VirtualThing {
  			@ThingworxServiceParameter( name="name", description="Name of Client.", baseType="STRING" ) String name,
  			@ThingworxServiceParameter( name="Location", description="Location of Client.", baseType="STRING") String loc) throws Exception {
 		
-		ValueCollection payload = new ValueCollection();
-		payload.put("ID", new IntegerPrimitive(ID));
-		payload.put("name", new StringPrimitive(name));
-		payload.put("Location", new StringPrimitive(loc));
-		
 		try {
-			ConnectedClientsInfo.addRow(payload);
-			setClientProperty("ClientsConnected", ConnectedClientsInfo.getLength());
+			if(!Clients.add(ID, name, loc)) {
+				LOG.error("Client {} with ID {} was not added, because the ID or the name is used by another client.", name, ID);
+				return -1;
+			}
+			ClientIds.claim(ID);
+			Properties.set("ClientsConnected", Clients.size());
 		} catch (Exception e) {
 			LOG.error("Error occured in addClient: {}.", e);
 			return -1;
@@ -234,16 +360,18 @@ public class ServerThing extends VirtualThing {
 	}
 	
 	/**
-	 * This method creates a new client in the platform.
+	 * This method creates a new client in the platform. The service does not wait for the platform, so that slow
+	 * platform calls do not hold the threads of the SDK which door decisions need. The outcome of the call is reported
+	 * through the PendingPlatformCalls, FailedPlatformCalls and LastPlatformCallError properties.
 	 * 
 	 * @param name Name of new Client
 	 * @param desc Description of new CLient
 	 * @param template Name of template to create client from
-	 * @return TRUE if execution was successful
+	 * @return TRUE if the call was sent to the platform
 	 * @throws Exception
 	 */
 	@ThingworxServiceDefinition(name="createClient", description="Creates a ClientThing")
-	@ThingworxServiceResult(name="result", description="TRUE if excecution was successful.", baseType="BOOLEAN")
+	@ThingworxServiceResult(name="result", description="TRUE if the call was sent to the platform.", baseType="BOOLEAN")
  	public boolean createClient(
  			@ThingworxServiceParameter( name="name", description="Name of Client.", baseType="STRING" ) String name,
  			@ThingworxServiceParameter( name="description", description="Description for client.", baseType="STRING" ) String desc,
@@ -255,10 +383,10 @@ public class ServerThing extends VirtualThing {
 			payload.put("description", new StringPrimitive(desc));
 			payload.put("thingTemplateName", new StringPrimitive(template));
 			
-			this.getClient().invokeService(ThingworxEntityTypes.Resources, "EntityServices", "CreateThing", payload, 10000);	
+			follow("CreateThing " + name, Platform.invoke(ThingworxEntityTypes.Resources, "EntityServices", "CreateThing", payload, Deadline.after(PLATFORM_BUDGET_MILLIS)), null);
 			
 		} catch (Exception e) {
-			LOG.error("Error occured in DeleteClient: {}.", e);
+			LOG.error("Error occured in createClient: {}.", e);
 			return false;
 		}		
 		return true;
@@ -276,45 +404,59 @@ public class ServerThing extends VirtualThing {
 	@ThingworxServiceResult(name="result", description="New Number of connected Clients.", baseType="INTEGER")
  	public int removeClient(
  			@ThingworxServiceParameter( name="ID", description="ID of Client.", baseType="INTEGER" ) Integer ID) throws Exception {
-		int var=0;
-		
+		int count;
 		try {
-			
-			for (var=0; ConnectedClientsInfo.getRow(var).get("ID").getValue() != ID;var++) {
+			if(Clients.remove(ID) == null) {
+				LOG.warn("Client with ID {} was not removed, because it is not connected.", ID);
+				return -1;
 			}
-			ConnectedClientsInfo.removeRow(var);
-
-			setClientProperty("ClientsConnected", ConnectedClientsInfo.getLength());
+			ClientIds.release(ID);
+			count = Clients.size();
+			Properties.set("ClientsConnected", count);
 		} catch (Exception e) {
 			LOG.error("Error occured in removeClient: {}.", e);
 			return -1;
 		}
 				
 		LOG.info("Client with ID {} was deleted.", ID);
-		return ConnectedClientsInfo.getLength();
+		return count;
 	}
 	
 	/**
-	 * This method deletes a ClientThing.
+	 * This method deletes a ClientThing. Like createClient, the service does not wait for the platform.
+	 * The client is unregistered once its thing is deleted, which getConnectedClientsChanges reports as REMOVED,
+	 * and a failure is reported through the FailedPlatformCalls and LastPlatformCallError properties.
 	 * 
 	 * @param name Name of Client
 	 * @param ID ID of Client
-	 * @return TRUE if execution was successful
+	 * @return TRUE if the call was sent to the platform
 	 * @throws Exception
 	 * @see https://developer.thingworx.com/resources/guides/thingworx-java-sdk-quickstart/creating-data-model
 	 */
 	@ThingworxServiceDefinition(name="deleteClient", description="Deletes a ClientThing")
-	@ThingworxServiceResult(name="result", description="TRUE if excecution was successfull.", baseType="BOOLEAN")
+	@ThingworxServiceResult(name="result", description="TRUE if the call was sent to the platform.", baseType="BOOLEAN")
  	public boolean deleteClient(
  			@ThingworxServiceParameter( name="name", description="Name of Client.", baseType="STRING" ) String name,
- 			@ThingworxServiceParameter( name="ID", description="ID of Client.", baseType="INTEGER" ) Integer ID) throws Exception {
+ 			@ThingworxServiceParameter( name="ID", description="ID of Client.", baseType="INTEGER" ) final Integer ID) throws Exception {
 		
 		try {
 			ValueCollection payload = new ValueCollection();
 			payload.put("name", new StringPrimitive(name));
 			payload.put("ID", new IntegerPrimitive(ID));
-			this.getClient().invokeService(ThingworxEntityTypes.Things, "ServerThing", "removeClient", payload, 10000);
-			this.getClient().invokeService(ThingworxEntityTypes.Resources, "EntityServices", "DeleteThing", payload, 10000);
+			// The client is unregistered only once its thing is deleted, and locally, as by deleteClients, so that
+			// nothing can fail in between. If deleting the thing fails, nothing has changed and the call can be repeated.
+			follow("DeleteThing " + name, Platform.invoke(ThingworxEntityTypes.Resources, "EntityServices", "DeleteThing", payload, Deadline.after(PLATFORM_BUDGET_MILLIS)), new Runnable() {
+				@Override
+				public void run() {
+					if(Clients.remove(ID) == null) {
+						LOG.warn("Client with ID {} was deleted, but it was not connected.", ID);
+					} else {
+						updateClientsConnected();
+					}
+					// Releases the ID of an added client, or cancels the reservation of a client which was deleted before it was added
+					ClientIds.releaseOrCancel(ID);
+				}
+			});
 		} catch (Exception e) {
 			LOG.error("Error occured in DeleteClient: {}.", e);
 			return false;
@@ -322,16 +464,209 @@ public class ServerThing extends VirtualThing {
 		return true;
 	}
 	
+	/**
+	 * Follows a platform call which the service does not wait for, and reports its outcome through properties.
+	 * 
+	 * @param description What the call does, e.g. the service and the name of the thing
+	 * @param call Call to follow
+	 * @param succeeded Run on the thread which completes the call if it succeeded, or null
+	 */
+	private void follow(final String description, CompletableFuture<InfoTable> call, final Runnable succeeded) {
+		synchronized (PlatformCallsLock) {
+			Properties.set("PendingPlatformCalls", ++PendingPlatformCalls);
+		}
+		call.whenComplete(new BiConsumer<InfoTable, Throwable>() {
+			@Override
+			public void accept(InfoTable result, Throwable t) {
+				if(t == null) {
+					try {
+						if(succeeded != null) {
+							succeeded.run();
+						}
+						LOG.info("{} succeeded.", description);
+					} catch (Exception e) {
+						LOG.error("Error occured after {}: {}.", description, e);
+					}
+				} else {
+					LOG.error("{} failed: {}.", description, t);
+				}
+				synchronized (PlatformCallsLock) {
+					if(t != null) {
+						Properties.set("FailedPlatformCalls", ++FailedPlatformCalls);
+						Properties.set("LastPlatformCallError", description + ": " + (t.getMessage() == null ? t : t.getMessage()));
+					}
+					Properties.set("PendingPlatformCalls", --PendingPlatformCalls);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * This method creates many clients in the platform and registers them. IDs are allocated for all clients in one step,
+	 * the things are created with bounded concurrency, and the registry and the ClientsConnected property are updated once.
+	 * 
+	 * @param clients Clients to create, a client without a name is named after its ID
+	 * @return Result per client, in the same order
+	 */
+	@ThingworxServiceDefinition(name="createClients", description="Creates many ClientThings")
+	@ThingworxServiceResult(name="result", description="Result per client.", baseType="INFOTABLE", aspects={"dataShape:ClientResultShape"})
+ 	public InfoTable createClients(
+ 			@ThingworxServiceParameter( name="clients", description="Clients to create.", baseType="INFOTABLE", aspects={"dataShape:ClientProvisioningShape"} ) InfoTable clients){
+		
+		int count = clients.getRowCount();
+		int[] ids = ClientIds.allocate(count);
+		String[] names = new String[count];
+		String[] locations = new String[count];
+		List<AsyncPlatformInvoker.Call> calls = new ArrayList<AsyncPlatformInvoker.Call>(count);
+		for (int i = 0; i < count; i++) {
+			ValueCollection client = clients.getRow(i);
+			String name = client.getStringValue("name");
+			names[i] = name == null || name.isEmpty() ? "ClientThing_" + ids[i] : name;
+			locations[i] = client.getStringValue("Location");
+			
+			ValueCollection payload = new ValueCollection();
+			payload.put("name", new StringPrimitive(names[i]));
+			payload.put("description", new StringPrimitive(client.getStringValue("description")));
+			payload.put("thingTemplateName", new StringPrimitive(client.getStringValue("thingTemplateName")));
+			calls.add(new AsyncPlatformInvoker.Call(ThingworxEntityTypes.Resources, "EntityServices", "CreateThing", payload));
+		}
+		String[] errors = await(Platform.invokeAll(calls, BULK_CONCURRENCY, PLATFORM_BUDGET_MILLIS));
+		
+		List<Integer> created = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			if (errors[i] == null) {
+				created.add(i);
+			} else {
+				ClientIds.cancelReservation(ids[i]);
+			}
+		}
+		int[] createdIds = new int[created.size()];
+		String[] createdNames = new String[created.size()];
+		String[] createdLocations = new String[created.size()];
+		for (int j = 0; j < created.size(); j++) {
+			createdIds[j] = ids[created.get(j)];
+			createdNames[j] = names[created.get(j)];
+			createdLocations[j] = locations[created.get(j)];
+		}
+		boolean[] added = Clients.addAll(createdIds, createdNames, createdLocations);
+		for (int j = 0; j < created.size(); j++) {
+			if (added[j]) {
+				ClientIds.claim(createdIds[j]);
+			} else {
+				errors[created.get(j)] = "Thing was created, but the name is used by another client";
+				ClientIds.cancelReservation(createdIds[j]);
+			}
+		}
+		updateClientsConnected();
+		
+		LOG.info("Created {} of {} clients.", created.size(), count);
+		return results(ids, names, errors);
+	}
+	
+	/**
+	 * This method deletes many ClientThings and unregisters them. The things are deleted with bounded concurrency,
+	 * and the registry and the ClientsConnected property are updated once.
+	 * 
+	 * @param clients Clients to delete, by ID and name
+	 * @return Result per client, in the same order
+	 */
+	@ThingworxServiceDefinition(name="deleteClients", description="Deletes many ClientThings")
+	@ThingworxServiceResult(name="result", description="Result per client.", baseType="INFOTABLE", aspects={"dataShape:ClientResultShape"})
+ 	public InfoTable deleteClients(
+ 			@ThingworxServiceParameter( name="clients", description="Clients to delete.", baseType="INFOTABLE", aspects={"dataShape:ClientEntryShape"} ) InfoTable clients){
+		
+		int count = clients.getRowCount();
+		int[] ids = new int[count];
+		String[] names = new String[count];
+		List<AsyncPlatformInvoker.Call> calls = new ArrayList<AsyncPlatformInvoker.Call>(count);
+		for (int i = 0; i < count; i++) {
+			ValueCollection client = clients.getRow(i);
+			Object id = client.getValue("ID");
+			ids[i] = id instanceof Number ? ((Number) id).intValue() : -1;
+			names[i] = client.getStringValue("name");
+			
+			ValueCollection payload = new ValueCollection();
+			payload.put("name", new StringPrimitive(names[i]));
+			calls.add(new AsyncPlatformInvoker.Call(ThingworxEntityTypes.Resources, "EntityServices", "DeleteThing", payload));
+		}
+		String[] errors = await(Platform.invokeAll(calls, BULK_CONCURRENCY, PLATFORM_BUDGET_MILLIS));
+		
+		List<Integer> deleted = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			if (errors[i] == null) {
+				deleted.add(ids[i]);
+			}
+		}
+		Clients.removeAll(deleted);
+		// One step per ID, which releases added clients and cancels the reservation of clients which were deleted before they were added
+		for (Integer id : deleted) {
+			ClientIds.releaseOrCancel(id);
+		}
+		updateClientsConnected();
+		
+		LOG.info("Deleted {} of {} clients.", deleted.size(), count);
+		return results(ids, names, errors);
+	}
+	
+	/**
+	 * @return Per call, null if it succeeded, otherwise its error
+	 */
+	private static String[] await(List<CompletableFuture<InfoTable>> calls) {
+		String[] errors = new String[calls.size()];
+		for (int i = 0; i < errors.length; i++) {
+			try {
+				AsyncPlatformInvoker.await(calls.get(i));
+			} catch (Exception e) {
+				errors[i] = String.valueOf(e.getMessage() == null ? e : e.getMessage());
+				LOG.error("Platform call {} of bulk operation failed: {}.", i, e);
+			}
+		}
+		return errors;
+	}
+	
+	private InfoTable results(int[] ids, String[] names, String[] errors) {
+		InfoTable results = new InfoTable(getDataShapeDefinition("ClientResultShape"));
+		for (int i = 0; i < ids.length; i++) {
+			ValueCollection row = new ValueCollection();
+			row.put("ID", new IntegerPrimitive(ids[i]));
+			row.put("name", new StringPrimitive(names[i]));
+			row.put("success", new BooleanPrimitive(errors[i] == null));
+			if (errors[i] != null) {
+				row.put("error", new StringPrimitive(errors[i]));
+			}
+			results.addRow(row);
+		}
+		return results;
+	}
+	
+	private void updateClientsConnected() {
+		Properties.set("ClientsConnected", Clients.size());
+	}
+	
+	/**
+	 * Checks the rules for a person on the decision lane. If the lane is full, access is denied at once.
+	 * 
+	 * @param name "name surname" of the person
+	 * @return TRUE if the person is granted access
+	 */
 	@ThingworxServiceDefinition(name="checkRules", description="Checks rules for entering person")
 	@ThingworxServiceResult(name="result", description="TRUE if person is granted access.", baseType="BOOLEAN")
  	public boolean checkRules(
- 			@ThingworxServiceParameter( name="name", description="Name of Client.", baseType="STRING" ) String name){	
+ 			@ThingworxServiceParameter( name="name", description="Name of Client.", baseType="STRING" ) final String name){	
 
 		try {
-			eng.checkRules(name);
+			Decisions.decide(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return eng.checkRules(name);
+				}
+			});
 		} catch (NoMatchingRuleFoundException e) {
 			LOG.info("No matching rule was found for {}.", name);
 			return false;
+		} catch (RejectedExecutionException e) {
+			LOG.warn("Access was denied to {}, since the decision lane is full.", name);
+			return false;
 		} catch (Exception e) {
 			LOG.error("Error occured in checkRules: {}.", e);	
 			return false;
@@ -340,8 +675,54 @@ public class ServerThing extends VirtualThing {
 		return true;
  	}
 	
+	/**
+	 * Checks the rules for many persons in one decision on the decision lane. If the lane is full, no decision is returned.
+	 * 
+	 * @param persons Names of the persons, each "name surname"
+	 * @return Decision per person, in the same order
+	 */
+	@ThingworxServiceDefinition(name="checkRulesBatch", description="Checks rules for many persons in one call")
+	@ThingworxServiceResult(name="result", description="Decision per person.", baseType="INFOTABLE", aspects={"dataShape:RuleDecisionShape"})
+ 	public InfoTable checkRulesBatch(
+ 			@ThingworxServiceParameter( name="persons", description="Names of the persons.", baseType="INFOTABLE", aspects={"dataShape:RulePersonShape"} ) InfoTable persons){	
+
+		InfoTable decisions = new InfoTable(getDataShapeDefinition("RuleDecisionShape"));
+		final List<String> names = new ArrayList<String>();
+		for (int i = 0; i < persons.getRowCount(); i++) {
+			names.add(persons.getRow(i).getStringValue("name"));
+		}
+		
+		List<String> outcomes;
+		try {
+			outcomes = Decisions.decide(new Callable<List<String>>() {
+				@Override
+				public List<String> call() {
+					return eng.checkRulesBatch(names);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOG.warn("Access was denied to {} persons, since the decision lane is full.", names.size());
+			return decisions;
+		} catch (Exception e) {
+			LOG.error("Error occured in checkRulesBatch: {}.", e);
+			return decisions;
+		}
+		
+		for (int i = 0; i < names.size(); i++) {
+			ValueCollection row = new ValueCollection();
+			row.put("name", new StringPrimitive(names.get(i)));
+			row.put("granted", new BooleanPrimitive(outcomes.get(i) != null));
+			if (outcomes.get(i) != null) {
+				row.put("outcome", new StringPrimitive(outcomes.get(i)));
+			}
+			decisions.addRow(row);
+		}
+		LOG.info("Checked rules for {} persons.", names.size());
+		return decisions;
+ 	}
+	
 	@ThingworxServiceDefinition(name="addRule", description="Adds rule to engine")
-	@ThingworxServiceResult(name="result", description="New Number of Rules", baseType="INTEGER")
+	@ThingworxServiceResult(name="result", description="New Number of Rules, -1 if the change failed", baseType="INTEGER")
  	public int addRule(
  			@ThingworxServiceParameter( name="name", description="Name of rule.", baseType="STRING" ) String name,
  			@ThingworxServiceParameter( name="condition", description="Condition of rule.", baseType="STRING" ) String condition){	
@@ -349,9 +730,165 @@ public class ServerThing extends VirtualThing {
 		return eng.addRule(name.toString(), condition.toString());
  	}
 	
-	@ThingworxServiceDefinition(name="getConnectedClients", description="Returns a Infotable of all connected clients.")
-	@ThingworxServiceResult(name="result", description="List of connected Clients.", baseType="INFOTABLE")
- 	public InfoTable getConnectedClients(){
-		return ConnectedClientsInfo;
+	@ThingworxServiceDefinition(name="removeRule", description="Removes rule from engine")
+	@ThingworxServiceResult(name="result", description="New Number of Rules, -1 if the change failed", baseType="INTEGER")
+ 	public int removeRule(
+ 			@ThingworxServiceParameter( name="name", description="Name of rule.", baseType="STRING" ) String name){	
+
+		return eng.removeRule(name.toString());
+ 	}
+	
+	@ThingworxServiceDefinition(name="replaceRule", description="Replaces the condition of a rule in the engine")
+	@ThingworxServiceResult(name="result", description="New Number of Rules, -1 if the change failed", baseType="INTEGER")
+ 	public int replaceRule(
+ 			@ThingworxServiceParameter( name="name", description="Name of rule.", baseType="STRING" ) String name,
+ 			@ThingworxServiceParameter( name="condition", description="Condition of rule.", baseType="STRING" ) String condition){	
+
+		return eng.replaceRule(name.toString(), condition.toString());
+ 	}
+	
+	@ThingworxServiceDefinition(name="getDecisionCacheStatistics", description="Returns hit and miss counts of the checkRules decision cache.")
+	@ThingworxServiceResult(name="result", description="Statistics of the decision cache.", baseType="INFOTABLE", aspects={"dataShape:DecisionCacheStatisticsShape"})
+ 	public InfoTable getDecisionCacheStatistics(){
+		DecisionCache cache = eng.getDecisionCache();
+		InfoTable stats = new InfoTable(getDataShapeDefinition("DecisionCacheStatisticsShape"));
+		ValueCollection row = new ValueCollection();
+		row.put("hits", new NumberPrimitive((double) cache.getHits()));
+		row.put("misses", new NumberPrimitive((double) cache.getMisses()));
+		row.put("evictions", new NumberPrimitive((double) cache.getEvictions()));
+		row.put("size", new NumberPrimitive((double) cache.getSize()));
+		stats.addRow(row);
+		return stats;
+ 	}
+	
+	@ThingworxServiceDefinition(name="getPropertyWriteStatistics", description="Returns how many property writes were requested, made and saved by coalescing them per scan.")
+	@ThingworxServiceResult(name="result", description="Statistics of the property writes.", baseType="INFOTABLE", aspects={"dataShape:PropertyWriteStatisticsShape"})
+ 	public InfoTable getPropertyWriteStatistics(){
+		InfoTable stats = new InfoTable(getDataShapeDefinition("PropertyWriteStatisticsShape"));
+		ValueCollection row = new ValueCollection();
+		row.put("requested", new NumberPrimitive((double) Properties.getRequested()));
+		row.put("written", new NumberPrimitive((double) Properties.getWritten()));
+		row.put("saved", new NumberPrimitive((double) Properties.getSaved()));
+		stats.addRow(row);
+		return stats;
+ 	}
+	
+	/**
+	 * Returns the connected clients, ordered by ID, all of them or a page. Without afterId and limit, all matching clients
+	 * are returned, as before paging was added. Every row also holds the version of the registry the clients were
+	 * taken at, and the total number of matching clients at that version.
+	 * 
+	 * Pages are taken from the current snapshot, by ID rather than by position, so clients which connect or disconnect
+	 * between two pages never shift a client out of or into the next page. To read all clients page by page,
+	 * pass the highest ID of each page as afterId of the next call, until a page has fewer rows than the limit.
+	 * A caller which keeps a copy continues with getConnectedClientsChanges from the version of its first page,
+	 * so that it also gets the clients which changed behind its cursor while it was paging.
+	 * 
+	 * @param afterId Only return clients with a higher ID, e.g. the highest ID of the previous page
+	 * @param limit Maximum number of clients to return, at most 1000
+	 * @param loc Only return clients at this location, all if empty
+	 * @return Connected clients, each row with version and total
+	 */
+	@ThingworxServiceDefinition(name="getConnectedClients", description="Returns the connected clients ordered by ID, all of them or a page.")
+	@ThingworxServiceResult(name="result", description="List of connected Clients, each with the version of the registry and the total number of matching clients.", baseType="INFOTABLE", aspects={"dataShape:ClientPageShape"})
+ 	public InfoTable getConnectedClients(
+ 			@ThingworxServiceParameter( name="afterId", description="Only return clients with a higher ID, e.g. the highest ID of the previous page.", baseType="INTEGER" ) Integer afterId,
+ 			@ThingworxServiceParameter( name="limit", description="Maximum number of clients to return, at most 1000, 1000 if empty. All clients if neither afterId nor limit is given.", baseType="INTEGER" ) Integer limit,
+ 			@ThingworxServiceParameter( name="Location", description="Only return clients at this location, all if empty.", baseType="STRING" ) String loc){
+		//the snapshot is immutable, so the result is consistent even while clients connect and disconnect
+		ClientRegistry.Snapshot snapshot = loc == null || loc.isEmpty() ? Clients.getSnapshot() : Clients.getByLocation(loc);
+		List<ClientRegistry.Client> clients = snapshot.getClients();
+		if(afterId != null || limit != null) {
+			int max = limit == null || limit <= 0 ? MAX_CLIENTS_PAGE_SIZE : Math.min(limit, MAX_CLIENTS_PAGE_SIZE);
+			clients = snapshot.page(afterId == null ? Integer.MIN_VALUE : afterId, max);
+		}
+		
+		InfoTable table = new InfoTable(getDataShapeDefinition("ClientPageShape"));
+		NumberPrimitive version = new NumberPrimitive((double) snapshot.getVersion());
+		IntegerPrimitive total = new IntegerPrimitive(snapshot.getClients().size());
+		for(ClientRegistry.Client c : clients) {
+			ValueCollection row = new ValueCollection();
+			row.put("ID", new IntegerPrimitive(c.getId()));
+			row.put("name", new StringPrimitive(c.getName()));
+			row.put("Location", new StringPrimitive(c.getLocation()));
+			row.put("version", version);
+			row.put("total", total);
+			table.addRow(row);
+		}
+		return table;
+	}
+	
+	@ThingworxServiceDefinition(name="getClientsByLocation", description="Returns the connected clients at a location, ordered by ID.")
+	@ThingworxServiceResult(name="result", description="List of connected Clients at the location.", baseType="INFOTABLE", aspects={"dataShape:ClientEntryShape"})
+ 	public InfoTable getClientsByLocation(
+ 			@ThingworxServiceParameter( name="Location", description="Location of the clients.", baseType="STRING" ) String loc){
+		return clientsTable(Clients.getByLocation(loc).getClients());
+	}
+	
+	@ThingworxServiceDefinition(name="getClientCountsByLocation", description="Returns the number of connected clients per location.")
+	@ThingworxServiceResult(name="result", description="Number of connected Clients per location, ordered by location.", baseType="INFOTABLE", aspects={"dataShape:ClientLocationCountShape"})
+ 	public InfoTable getClientCountsByLocation(){
+		InfoTable table = new InfoTable(getDataShapeDefinition("ClientLocationCountShape"));
+		for(Map.Entry<String, Integer> e : Clients.getLocationCounts().entrySet()) {
+			ValueCollection row = new ValueCollection();
+			row.put("Location", new StringPrimitive(e.getKey()));
+			row.put("count", new IntegerPrimitive(e.getValue()));
+			table.addRow(row);
+		}
+		return table;
+	}
+	
+	/**
+	 * @return A table of its own for the caller, with one row per client
+	 */
+	private InfoTable clientsTable(List<ClientRegistry.Client> clients) {
+		InfoTable table = new InfoTable(getDataShapeDefinition("ClientEntryShape"));
+		for(ClientRegistry.Client c : clients) {
+			ValueCollection row = new ValueCollection();
+			row.put("ID", new IntegerPrimitive(c.getId()));
+			row.put("name", new StringPrimitive(c.getName()));
+			row.put("Location", new StringPrimitive(c.getLocation()));
+			table.addRow(row);
+		}
+		return table;
+	}
+	
+	/**
+	 * Returns what changed in the connected clients since the given version, so that callers which keep a copy
+	 * of the clients only fetch the changes. Every row has the version of the registry after the change,
+	 * the caller passes the highest one it has seen in the next call.
+	 * 
+	 * If the changes since that version are no longer known, a single RESYNC row with the current version is returned.
+	 * The caller then reads all clients with getConnectedClients, and continues from the version of the result,
+	 * or of its first page if it reads page by page, or from the version of the RESYNC row if there are no clients.
+	 * Changes after it may already be contained in what it read, applying them again does no harm.
+	 * 
+	 * @param sinceVersion Version the caller last saw, 0 to start
+	 * @return Changes since the version, oldest first, each ADDED, UPDATED or REMOVED, or one RESYNC row
+	 */
+	@ThingworxServiceDefinition(name="getConnectedClientsChanges", description="Returns the changes of the connected clients since a version.")
+	@ThingworxServiceResult(name="result", description="Changes since the version, or one RESYNC row.", baseType="INFOTABLE", aspects={"dataShape:ClientChangeShape"})
+ 	public InfoTable getConnectedClientsChanges(
+ 			@ThingworxServiceParameter( name="sinceVersion", description="Highest version seen so far, 0 to start.", baseType="NUMBER" ) Double sinceVersion){
+		InfoTable table = new InfoTable(getDataShapeDefinition("ClientChangeShape"));
+		List<ClientRegistry.Change> changes = Clients.getChangesSince(sinceVersion == null ? 0 : sinceVersion.longValue());
+		if(changes == null) {
+			ValueCollection row = new ValueCollection();
+			row.put("version", new NumberPrimitive((double) Clients.getVersion()));
+			row.put("change", new StringPrimitive("RESYNC"));
+			table.addRow(row);
+			return table;
 		}
+		for(ClientRegistry.Change change : changes) {
+			ClientRegistry.Client c = change.getClient();
+			ValueCollection row = new ValueCollection();
+			row.put("version", new NumberPrimitive((double) change.getVersion()));
+			row.put("change", new StringPrimitive(change.getType().name()));
+			row.put("ID", new IntegerPrimitive(c.getId()));
+			row.put("name", new StringPrimitive(c.getName()));
+			row.put("Location", new StringPrimitive(c.getLocation()));
+			table.addRow(row);
+		}
+		return table;
+	}
  }
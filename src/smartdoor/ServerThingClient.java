@@ -1,17 +1,27 @@
 package smartdoor;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.thingworx.communications.client.ClientConfigurator;
 import com.thingworx.communications.client.ConnectedThingClient;
-import com.thingworx.communications.client.things.VirtualThing;
 
 public class ServerThingClient extends ConnectedThingClient {
 
 	private static final Logger LOG = LoggerFactory.getLogger(ServerThingClient.class);
 	
 	private static String ThingName = "ServerThing";
+	
+	/** Interval between two scans of a thing */
+	private static final long SCAN_INTERVAL_MILLIS = 1000;
+	/** Number of things which are scanned at the same time */
+	private static final int SCAN_THREADS = 4;
+	/** Interval at which scan statistics are logged */
+	private static final long SCAN_STATISTICS_INTERVAL_MILLIS = 60000;
 
 	public ServerThingClient(ClientConfigurator config) throws Exception {
 		super(config);
@@ -22,6 +32,7 @@ public class ServerThingClient extends ConnectedThingClient {
 	 * @param args CLI arguments 
      *              [0] Ip of Server 
      *              [1] AppKey
+     *              [2] Directory of the rule store (optional, default "rulestore")
 	 */
 	public static void main(String[] args) {
 	
@@ -54,22 +65,42 @@ public class ServerThingClient extends ConnectedThingClient {
 				LOG.info("The client is now connected.");
 								
 				// Create a new VirtualThing to connect to a thing on the Thingworx platform
-				ServerThing thing = new ServerThing(ThingName, "A basic server thing", client);	
+				// Rules are recovered from and persisted to the rule store, so they survive a restart
+				File ruleStore = new File(args.length > 2 ? args[2] : "rulestore");
+				ServerThing thing = new ServerThing(ThingName, "A basic server thing", client, ruleStore);	
 				
 				// Bind the VirtualThing to the client. This will tell the Platform that
 				// the RemoteThing is now connected and that it is ready to receive requests.
 				client.bindThing(thing);
 
+				// All VirtualThings connected to the Client are scanned periodically and in parallel,
+				// a thing whose previous scan is still running is skipped.
+				ScanScheduler scans = new ScanScheduler(SCAN_THREADS);
+				Map<String, Long> skipped = new HashMap<String, Long>();
+				long nextStatistics = System.currentTimeMillis() + SCAN_STATISTICS_INTERVAL_MILLIS;
+
 				while (!client.isShutdown()) {
 					
-					Thread.sleep(1000);
+					// Things may be bound and unbound at any time, so the scheduled things follow the bound ones
+					scans.scheduleAll(client.getThings().values(), SCAN_INTERVAL_MILLIS);
+					
+					Thread.sleep(SCAN_INTERVAL_MILLIS);
 					
-					// This loop iterates to all VirtualThings connected to the Client and starts 
-					// a routine functions.
-					for (VirtualThing vt : client.getThings().values()) {
-						vt.processScanRequest();
+					if (System.currentTimeMillis() - nextStatistics >= 0) {
+						nextStatistics += SCAN_STATISTICS_INTERVAL_MILLIS;
+						for (ScanScheduler.ScanStatistics s : scans.getStatistics()) {
+							// The counts are cumulative, so only scans skipped since the last statistics count
+							Long previous = skipped.put(s.getName(), s.getSkipped());
+							long newlySkipped = s.getSkipped() - (previous == null ? 0 : previous);
+							if (newlySkipped > 0 || s.getLastLagMillis() > s.getIntervalMillis()) {
+								LOG.warn("Scans are falling behind, {} skipped since the last statistics: {}", newlySkipped, s);
+							} else {
+								LOG.debug("{}", s);
+							}
+						}
 					}
 				}
+				scans.shutdown(SCAN_INTERVAL_MILLIS);
 				
 			} else {
 				// Log this as a warning. In production the application could continue
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mvel2.integration.impl.MapVariableResolverFactory;
+
+public class AlphaIndexTest {
+
+	public static class Person {
+		private final String name, surname;
+		private final Object age;
+		public Person(String name, String surname, Object age) {
+			this.name = name;
+			this.surname = surname;
+			this.age = age;
+		}
+		public String getName() {
+			return name;
+		}
+		public String getSurname() {
+			return surname;
+		}
+		public Object getAge() {
+			return age;
+		}
+	}
+
+	@Test
+	public void analysesConjunctionsOfStringEqualities() {
+		assertNotNull(AlphaIndex.analyse("input.name == \"Alice\"", "input"));
+		assertNotNull(AlphaIndex.analyse("'Alice' == input.name", "input"));
+		assertNotNull(AlphaIndex.analyse("input.name == \"Alice\" && (input.surname == 'M')", "input"));
+		assertNotNull(AlphaIndex.analyse("  input.person.name==\"Alice\"  ", "input"));
+		assertNotNull(AlphaIndex.analyse("p.name == \"Alice\"", "p"));
+	}
+
+	@Test
+	public void leavesEverythingElseToMvel() {
+		assertNull(AlphaIndex.analyse("input.age > 3", "input"));
+		assertNull(AlphaIndex.analyse("input.age == 3", "input"));
+		assertNull(AlphaIndex.analyse("input.name == \"A\" || input.name == \"B\"", "input"));
+		assertNull(AlphaIndex.analyse("input.name != \"A\"", "input"));
+		assertNull(AlphaIndex.analyse("input.getName() == \"A\"", "input"));
+		assertNull(AlphaIndex.analyse("input.names[0] == \"A\"", "input"));
+		assertNull(AlphaIndex.analyse("input.name == \"A\\\"B\"", "input"));
+		assertNull(AlphaIndex.analyse("input.name === \"A\"", "input"));
+		assertNull(AlphaIndex.analyse("other.name == \"A\"", "input"));
+		assertNull(AlphaIndex.analyse("input.name == \"A\" && #subrule", "input"));
+	}
+
+	private static AlphaIndex<String> index(String... namesAndExpressions) {
+		Map<String, AlphaIndex.Conditions> indexed = new LinkedHashMap<String, AlphaIndex.Conditions>();
+		for(int i = 0; i < namesAndExpressions.length; i += 2){
+			indexed.put(namesAndExpressions[i], AlphaIndex.analyse(namesAndExpressions[i + 1], "input"));
+		}
+		return new AlphaIndex<String>(indexed, "input", new HashMap<String, Serializable>());
+	}
+
+	private static List<List<String>> match(AlphaIndex<String> index, Object input) {
+		Map<String, Object> vars = new HashMap<String, Object>();
+		vars.put("input", input);
+		List<String> matches = new ArrayList<String>(), undecided = new ArrayList<String>();
+		int n = index.getPropertyCount();
+		index.match(new MapVariableResolverFactory(vars), new Object[n], new boolean[n], matches, undecided);
+		return Arrays.asList(matches, undecided);
+	}
+
+	@Test
+	public void findsRulesWhoseEqualitiesAllHold() {
+		AlphaIndex<String> index = index(
+				"A", "input.name == \"Alice\"",
+				"AM", "input.name == \"Alice\" && input.surname == \"Mustermann\"",
+				"M", "input.surname == \"Mustermann\"",
+				"B", "'Bob' == input.name");
+		assertEquals(2, index.getPropertyCount());
+		assertEquals(Arrays.asList(Arrays.asList("A", "AM", "M"), Arrays.<String>asList()), match(index, new Person("Alice", "Mustermann", 1)));
+		assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.<String>asList()), match(index, new Person("Alice", "Meier", 1)));
+		assertEquals(Arrays.asList(Arrays.asList("B"), Arrays.<String>asList()), match(index, new Person("Bob", null, 1)));
+		assertEquals(Arrays.asList(Arrays.<String>asList(), Arrays.<String>asList()), match(index, new Person(null, null, 1)));
+	}
+
+	@Test
+	public void handsBackRulesOnPropertiesWhichAreNotStrings() {
+		AlphaIndex<String> index = index(
+				"A", "input.age == \"3\"",
+				"B", "input.name == \"Bob\" && input.age == \"3\"",
+				"C", "input.name == \"Carol\"");
+		//MVEL might coerce 3 to "3", so the index must not decide
+		assertEquals(Arrays.asList(Arrays.<String>asList(), Arrays.asList("A")), match(index, new Person("Alice", null, 3)));
+		//B is undecided, since its name matches, but its age cannot be compared
+		assertEquals(Arrays.asList(Arrays.<String>asList(), Arrays.asList("A", "B")), match(index, new Person("Bob", null, 3)));
+		assertEquals(Arrays.asList(Arrays.asList("A", "B"), Arrays.<String>asList()), match(index, new Person("Bob", null, "3")));
+	}
+
+	@Test
+	public void handsBackRulesOnPropertiesWhichCannotBeRead() {
+		AlphaIndex<String> index = index("A", "input.missing == \"x\"");
+		assertEquals(Arrays.asList(Arrays.<String>asList(), Arrays.asList("A")), match(index, new Person("Alice", null, 1)));
+	}
+}
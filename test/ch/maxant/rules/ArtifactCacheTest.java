@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArtifactCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Logger log = Logger.getLogger(Engine.class.getName());
+	private Level level;
+
+	@Before
+	public void setup() {
+		level = log.getLevel();
+		log.setLevel(Level.WARNING);
+	}
+
+	@After
+	public void teardown() {
+		log.setLevel(level);
+	}
+
+	@Test
+	public void allowsOnlyLibraryMvelAndCoreClasses() {
+		assertTrue(ArtifactCache.isAllowed("ch.maxant.rules.ArtifactCache$Artifacts"));
+		assertTrue(ArtifactCache.isAllowed("org.mvel2.compiler.ExecutableAccessor"));
+		assertTrue(ArtifactCache.isAllowed("java.lang.String"));
+		assertTrue(ArtifactCache.isAllowed("java.util.HashMap"));
+		assertTrue(ArtifactCache.isAllowed("java.math.BigDecimal"));
+		assertTrue(ArtifactCache.isAllowed("[B"));
+		assertTrue(ArtifactCache.isAllowed("[[I"));
+		assertTrue(ArtifactCache.isAllowed("[Ljava.lang.String;"));
+
+		assertFalse(ArtifactCache.isAllowed("java.io.File"));
+		assertFalse(ArtifactCache.isAllowed("java.lang.invoke.SerializedLambda"));
+		assertFalse(ArtifactCache.isAllowed("java.util.concurrent.ConcurrentHashMap"));
+		assertFalse(ArtifactCache.isAllowed("javax.management.BadAttributeValueExpException"));
+		assertFalse(ArtifactCache.isAllowed("org.apache.commons.collections.functors.InvokerTransformer"));
+		assertFalse(ArtifactCache.isAllowed("[Ljava.io.File;"));
+		assertFalse(ArtifactCache.isAllowed("["));
+	}
+
+	@Test
+	public void refusesToDeserializeOtherClasses() {
+		HashMap<String, Object> allowed = new HashMap<String, Object>();
+		allowed.put("a", new int[]{1});
+		assertEquals(1, ((int[]) ((Map<?, ?>) ArtifactCache.deserialize(ArtifactCache.serialize(allowed))).get("a"))[0]);
+
+		HashMap<String, Object> nested = new HashMap<String, Object>();
+		nested.put("a", new File("x"));
+		assertNull(ArtifactCache.deserialize(ArtifactCache.serialize(nested)));
+		assertNull(ArtifactCache.deserialize(ArtifactCache.serialize(new File("x"))));
+	}
+
+	@Test
+	public void compiledExpressionsAreStillLoaded() throws Exception {
+		File directory = folder.getRoot();
+		Engine first = new Engine.Builder(BytecodeBackendTest.rules()).withArtifactCache(directory).build();
+		File[] files = directory.listFiles();
+		assertEquals(1, files.length);
+
+		String key = files[0].getName().substring(0, files[0].getName().indexOf('.'));
+		ArtifactCache.Artifacts artifacts = new ArtifactCache(directory).load(key);
+		assertNotNull(artifacts);
+		assertFalse(artifacts.expressions.isEmpty());
+		for(Map.Entry<String, byte[]> e : artifacts.expressions.entrySet()){
+			Serializable compiled = ArtifactCache.deserialize(e.getValue());
+			assertNotNull(e.getKey(), compiled);
+		}
+
+		Engine second = new Engine.Builder(BytecodeBackendTest.rules()).withArtifactCache(directory).build();
+		for(BytecodeBackendTest.Visitor v : BytecodeBackendTest.visitors()){
+			assertEquals(first.getMatchingRules(v), second.getMatchingRules(v));
+		}
+	}
+}
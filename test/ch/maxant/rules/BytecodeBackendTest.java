@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the bytecode backend decides exactly like MVEL, for the rules it translates and those it leaves to MVEL.
+ */
+public class BytecodeBackendTest {
+
+	public static class Visitor {
+		private final String name;
+		private final int age;
+		private final boolean employee;
+		private final Visitor escort;
+		public Visitor(String name, int age, boolean employee, Visitor escort) {
+			this.name = name;
+			this.age = age;
+			this.employee = employee;
+			this.escort = escort;
+		}
+		public String getName() {
+			return name;
+		}
+		public int getAge() {
+			return age;
+		}
+		public boolean isEmployee() {
+			return employee;
+		}
+		public Visitor getEscort() {
+			return escort;
+		}
+	}
+
+	private final Logger log = Logger.getLogger(Engine.class.getName());
+	private Level level;
+
+	@Before
+	public void setup() {
+		level = log.getLevel();
+		log.setLevel(Level.WARNING);
+	}
+
+	@After
+	public void teardown() {
+		log.setLevel(level);
+	}
+
+	static List<Rule> rules() {
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(new Rule("adult", "input.age >= 18 && input.name != \"Mallory\"", "adult", 1, "ns"));
+		rules.add(new Rule("staff", "input.employee || input.name == \"Trent\"", "staff", 5, "ns"));
+		rules.add(new Rule("escorted", "input.escort != null && input.escort.employee", "escorted", 3, "ns"));
+		rules.add(new Rule("child", "!(input.age >= 12) && input.escort == null", "child", 2, "ns"));
+		rules.add(new Rule("range", "input.age > 30 && input.age <= 40 || input.age == 99", "range", 4, "ns"));
+		//not translated, so MVEL evaluates it on both backends
+		rules.add(new Rule("length", "input.name.length() == 3", "length", 0, "ns"));
+		//decided by the alpha index on both backends
+		rules.add(new Rule("alice", "input.name == \"Alice\"", "alice", 6, "ns"));
+		return rules;
+	}
+
+	static List<Visitor> visitors() {
+		Visitor staff = new Visitor("Trent", 40, true, null);
+		List<Visitor> visitors = new ArrayList<Visitor>();
+		String[] names = {"Alice", "Bob", "Mallory", "Trent", "Eve"};
+		int[] ages = {5, 11, 12, 17, 18, 31, 40, 41, 99};
+		for(String name : names){
+			for(int age : ages){
+				visitors.add(new Visitor(name, age, age % 2 == 0, null));
+				visitors.add(new Visitor(name, age, false, staff));
+			}
+		}
+		return visitors;
+	}
+
+	@Test
+	public void bytecodeDecidesLikeMvel() throws Exception {
+		Engine mvel = new Engine.Builder(rules()).build();
+		Engine bytecode = new Engine.Builder(rules()).withBackend(Engine.Backend.BYTECODE, Visitor.class).build();
+		for(Visitor v : visitors()){
+			assertEquals(v.getName() + " " + v.getAge(), mvel.getMatchingRules(v), bytecode.getMatchingRules(v));
+		}
+	}
+
+	@Test
+	public void rulesAddedLaterAreCompiledToo() throws Exception {
+		Engine bytecode = new Engine.Builder(rules()).withBackend(Engine.Backend.BYTECODE, Visitor.class).build();
+		bytecode.addRule(new Rule("senior", "input.age >= 99 && !input.employee", "senior", 10, "ns"));
+		assertEquals("senior", bytecode.getBestOutcome(new Visitor("Bob", 99, false, null)));
+		assertEquals("staff", bytecode.getBestOutcome(new Visitor("Bob", 99, true, null)));
+	}
+
+	@Test
+	public void literalsBeyondLongRangeAreLeftToMvel() {
+		BytecodeCompiler compiler = new BytecodeCompiler(Visitor.class, "input");
+		assertEquals("(in.getAge() < 2147483648L)", compiler.translate("input.age < 2147483648"));
+		//translating must not throw, so that the rule falls back to MVEL instead of failing the engine
+		assertNull(compiler.translate("input.age < 99999999999999999999"));
+	}
+}
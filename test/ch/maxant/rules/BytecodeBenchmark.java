@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.maxant.rules.BytecodeBackendTest.Visitor;
+
+/**
+ * Compares the time per evaluation of the MVEL and the bytecode backend.  Not a test, since timings depend on 
+ * the machine, run it with the main method.  The rules cannot be decided by the alpha index, so every rule 
+ * is evaluated by the backend for every input.<br>
+ * <br>
+ * Arguments: number of rules (default 1000), evaluations per round (default 20000), rounds (default 5).
+ */
+public class BytecodeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int ruleCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int evaluations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		Logger.getLogger(Engine.class.getName()).setLevel(Level.WARNING);
+		Logger.getLogger(BytecodeCompiler.class.getName()).setLevel(Level.WARNING);
+
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 0; i < ruleCount; i++){
+			rules.add(new Rule("R" + i, "input.age > " + (i % 90) + " && input.name != \"N" + i + "\" || input.escort != null && input.escort.employee", "O" + i, i, "ns"));
+		}
+		List<Visitor> visitors = BytecodeBackendTest.visitors();
+
+		long start = System.currentTimeMillis();
+		Engine mvel = new Engine.Builder(rules).build();
+		long mvelStartup = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		Engine bytecode = new Engine.Builder(rules).withBackend(Engine.Backend.BYTECODE, Visitor.class).build();
+		long bytecodeStartup = System.currentTimeMillis() - start;
+		System.out.println(ruleCount + " rules, compiled in " + mvelStartup + " ms (MVEL) and " + bytecodeStartup + " ms (bytecode)");
+
+		for(int round = 1; round <= rounds; round++){
+			double mvelNanos = time(mvel, visitors, evaluations);
+			double bytecodeNanos = time(bytecode, visitors, evaluations);
+			System.out.printf("round %d: MVEL %.0f ns, bytecode %.0f ns per evaluation of all rules, %.1fx faster%n", 
+					round, mvelNanos, bytecodeNanos, mvelNanos / bytecodeNanos);
+		}
+	}
+
+	private static double time(Engine engine, List<Visitor> visitors, int evaluations) {
+		int matches = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < evaluations; i++){
+			matches += engine.getMatchingRules(visitors.get(i % visitors.size())).size();
+		}
+		long nanos = System.nanoTime() - start;
+		if(matches < 0){
+			//keeps the JIT from removing the loop
+			System.out.println(matches);
+		}
+		return nanos / (double) evaluations;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that evaluating rules reuses the per thread state, so that the hot path creates (almost) no garbage.
+ * Bytes are counted with the allocation counter of the current thread, which HotSpot provides.
+ */
+public class EngineAllocationTest {
+
+	private static final int WARMUP = 200000;
+	private static final int EVALUATIONS = 100000;
+
+	public static class Person {
+		private final String name;
+		private final int age;
+		public Person(String name, int age) {
+			this.name = name;
+			this.age = age;
+		}
+		public String getName() {
+			return name;
+		}
+		public int getAge() {
+			return age;
+		}
+	}
+
+	private final Logger log = Logger.getLogger(Engine.class.getName());
+	private Level level;
+	private com.sun.management.ThreadMXBean threads;
+
+	@Before
+	public void setup() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		//as in production, where matches are not logged
+		level = log.getLevel();
+		log.setLevel(Level.WARNING);
+	}
+
+	@After
+	public void teardown() {
+		log.setLevel(level);
+	}
+
+	/** equality rules which the alpha index decides, and rules which MVEL has to evaluate */
+	private Engine engine() throws Exception {
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 0; i < 100; i++){
+			rules.add(new Rule("R" + i, "input.name == \"N" + i + "\"", "O" + i, i, "ns", null));
+		}
+		for(int i = 0; i < 20; i++){
+			rules.add(new Rule("M" + i, "input.age > " + (40 + i) + " && input.name != \"x\"", "M" + i, i, "ns", null));
+		}
+		return new Engine(rules, true);
+	}
+
+	@Test
+	public void getBestOutcomeAllocatesNothing() throws Exception {
+		Engine engine = engine();
+		Person person = new Person("N50", 30);
+		for(int i = 0; i < WARMUP; i++){
+			engine.getBestOutcome(person);
+		}
+		long bytes = allocated();
+		for(int i = 0; i < EVALUATIONS; i++){
+			engine.getBestOutcome(person);
+		}
+		bytes = allocated() - bytes;
+		assertEquals("O50", engine.getBestOutcome(person));
+		assertTrue("allocated " + bytes + " bytes", bytes / EVALUATIONS < 8);
+	}
+
+	@Test
+	public void getMatchingRulesOnlyAllocatesTheResult() throws Exception {
+		Engine engine = engine();
+		//matches one indexed rule and, via MVEL, five of the others
+		Person person = new Person("N50", 45);
+		for(int i = 0; i < WARMUP; i++){
+			engine.getMatchingRules(person);
+		}
+		long bytes = allocated();
+		for(int i = 0; i < EVALUATIONS; i++){
+			engine.getMatchingRules(person);
+		}
+		bytes = allocated() - bytes;
+		assertEquals(6, engine.getMatchingRules(person).size());
+		//the returned array and its list view
+		assertTrue("allocated " + bytes + " bytes", bytes / EVALUATIONS < 128);
+	}
+
+	private long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.maxant.rules.JavascriptEngine.ExecutionMode;
+
+/**
+ * Checks that the execution modes and fused rules decide exactly like the default, pooled engine which evaluates rule by rule.
+ */
+public class JavascriptEngineTest {
+
+	public static class Visitor {
+		private final String name;
+		private final int age;
+		public Visitor(String name, int age) {
+			this.name = name;
+			this.age = age;
+		}
+		public String getName() {
+			return name;
+		}
+		public int getAge() {
+			return age;
+		}
+	}
+
+	private final Logger[] logs = {Logger.getLogger(Engine.class.getName()), Logger.getLogger(JavascriptEngine.class.getName())};
+	private final Level[] levels = new Level[logs.length];
+
+	@Before
+	public void setup() {
+		for(int i = 0; i < logs.length; i++){
+			levels[i] = logs[i].getLevel();
+			logs[i].setLevel(Level.WARNING);
+		}
+	}
+
+	@After
+	public void teardown() {
+		for(int i = 0; i < logs.length; i++){
+			logs[i].setLevel(levels[i]);
+		}
+	}
+
+	static List<Rule> rules() {
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(new Rule("adult", "input.age >= 18", "adult", 1, "door"));
+		rules.add(new Rule("alice", "input.name == 'Alice'", "alice", 5, "door"));
+		rules.add(new Rule("child", "input.age < 12 && input.name != 'Bob'", "child", 3, "door"));
+		//not a boolean, but a string which reads as true
+		rules.add(new Rule("teen", "input.age >= 12 && input.age < 18 ? 'true' : 'false'", "teen", 2, "door"));
+		rules.add(new Rule("staff", "input.name.length() == 3", "staff", 4, "office"));
+		return rules;
+	}
+
+	static List<Visitor> visitors() {
+		List<Visitor> visitors = new ArrayList<Visitor>();
+		for(String name : new String[]{"Alice", "Bob", "Eve", "Mallory"}){
+			for(int age : new int[]{5, 12, 17, 18, 40}){
+				visitors.add(new Visitor(name, age));
+			}
+		}
+		return visitors;
+	}
+
+	private static JavascriptEngine engine(List<Rule> rules, ExecutionMode executionMode, boolean fuseRules) throws Exception {
+		return new JavascriptEngine.Builder(rules).withPoolSize(2).withExecutionMode(executionMode).withFuseRules(fuseRules).build();
+	}
+
+	private static void assertDecidesLike(JavascriptEngine expected, JavascriptEngine actual) {
+		for(Visitor v : visitors()){
+			String message = v.getName() + " " + v.getAge();
+			assertEquals(message, expected.getMatchingRules(v), actual.getMatchingRules(v));
+			assertEquals(message, expected.getMatchingRules("door", v), actual.getMatchingRules("door", v));
+			assertEquals(message, expected.getMatchingRules("off.*", v), actual.getMatchingRules("off.*", v));
+		}
+		assertEquals(expected.getBestOutcomes(null, visitors()), actual.getBestOutcomes(null, visitors()));
+		assertEquals(expected.getBestOutcomes("door", visitors()), actual.getBestOutcomes("door", visitors()));
+	}
+
+	@Test
+	public void threadLocalDecidesLikePooled() throws Exception {
+		JavascriptEngine pooled = engine(rules(), ExecutionMode.POOLED, false);
+		JavascriptEngine threadLocal = engine(rules(), ExecutionMode.THREAD_LOCAL, false);
+		assertDecidesLike(pooled, threadLocal);
+		assertEquals(ExecutionMode.THREAD_LOCAL, threadLocal.getStatistics().getExecutionMode());
+	}
+
+	@Test
+	public void threadLocalDecidesLikePooledOnManyThreads() throws Exception {
+		final JavascriptEngine pooled = engine(rules(), ExecutionMode.POOLED, false);
+		final JavascriptEngine threadLocal = engine(rules(), ExecutionMode.THREAD_LOCAL, false);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for(int i = 0; i < 8; i++){
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						assertDecidesLike(pooled, threadLocal);
+						return null;
+					}
+				}));
+			}
+			for(Future<?> f : results){
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		//one engine per thread which evaluated, plus the one the constructor compiled with
+		assertTrue(threadLocal.getStatistics().getEnginesCreated() <= 5 + 1);
+	}
+
+	@Test
+	public void fusedRulesDecideLikeRulesEvaluatedOneByOne() throws Exception {
+		JavascriptEngine oneByOne = engine(rules(), ExecutionMode.POOLED, false);
+		assertDecidesLike(oneByOne, engine(rules(), ExecutionMode.POOLED, true));
+		assertDecidesLike(oneByOne, engine(rules(), ExecutionMode.THREAD_LOCAL, true));
+	}
+
+	@Test
+	public void fusedRulesFallBackToRulesEvaluatedOneByOne() throws Exception {
+		List<Rule> rules = rules();
+		//evaluated last and fails at runtime, so the fused function fails as a whole whenever it gets this far
+		rules.add(new Rule("broken", "undefinedFunction()", "broken", 0, "door"));
+		JavascriptEngine oneByOne = engine(rules, ExecutionMode.POOLED, false);
+		JavascriptEngine fused = engine(rules, ExecutionMode.POOLED, true);
+		for(Visitor v : visitors()){
+			assertEquals(outcome(oneByOne, v), outcome(fused, v));
+			assertEquals(failure(oneByOne, v), failure(fused, v));
+		}
+		assertEquals("rule door.broken failed", outcome(fused, new Visitor("Bob", 5)));
+	}
+
+	/** @return the best outcome, or which rule failed */
+	private static String outcome(JavascriptEngine engine, Visitor v) {
+		try {
+			return engine.getBestOutcome("door", v);
+		} catch (NoMatchingRuleFoundException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return e.getMessage().replace("Failed to run script ", "rule ") + " failed";
+		}
+	}
+
+	/** @return which rule failed when evaluating all rules */
+	private static String failure(JavascriptEngine engine, Visitor v) {
+		try {
+			engine.getMatchingRules(v);
+			return null;
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	@Test
+	public void pooledEnginesAreReplacedWhenRulesChange() throws Exception {
+		for(ExecutionMode mode : ExecutionMode.values()){
+			for(boolean fuseRules : new boolean[]{false, true}){
+				JavascriptEngine engine = engine(rules(), mode, fuseRules);
+				Visitor bob = new Visitor("Bob", 40);
+				assertEquals(mode + " " + fuseRules, "staff", engine.getBestOutcome(bob));
+				long created = engine.getStatistics().getEnginesCreated();
+
+				engine.addRule(new Rule("bob", "input.name == 'Bob'", "bob", 10, "door"));
+				assertEquals(mode + " " + fuseRules, 0, engine.getPoolSize()[1]);
+				assertEquals(mode + " " + fuseRules, "bob", engine.getBestOutcome(bob));
+				assertTrue(mode + " " + fuseRules, engine.getStatistics().getEnginesCreated() > created);
+
+				engine.removeRule("door.bob");
+				engine.replaceRule(new Rule("staff", "input.name.length() == 5", "staff", 4, "office"));
+				assertEquals(mode + " " + fuseRules, "adult", engine.getBestOutcome(bob));
+				List<Rule> changed = rules();
+				changed.set(4, new Rule("staff", "input.name.length() == 5", "staff", 4, "office"));
+				assertDecidesLike(engine(changed, ExecutionMode.POOLED, false), engine);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class NamespaceIndexTest {
+
+	private final AtomicInteger combined = new AtomicInteger();
+
+	/** joins the names of the selected namespaces, so a selection shows which namespaces it covers */
+	private NamespaceIndex<String> index(String... namespaces) {
+		Map<String, String> partitions = new HashMap<String, String>();
+		for(String ns : namespaces){
+			partitions.put(ns, ns);
+		}
+		return new NamespaceIndex<String>(partitions, new NamespaceIndex.Combiner<String>() {
+			@Override
+			public String combine(List<String> selected) {
+				combined.incrementAndGet();
+				List<String> sorted = new ArrayList<String>(selected);
+				Collections.sort(sorted);
+				return sorted.toString();
+			}
+		});
+	}
+
+	@Test
+	public void selectsNamespacesMatchingThePattern() {
+		NamespaceIndex<String> index = index("site1.door.a", "site1.door.b", "site1.gate", "site2.door.a");
+		assertEquals("site1.gate", index.select("site1.gate"));
+		assertEquals("[site1.door.a, site1.door.b]", index.select("site1\\.door\\..*"));
+		assertEquals("[site1.door.a, site2.door.a]", index.select(".*\\.door\\.a"));
+		assertEquals("[site1.door.a, site1.door.b, site1.gate]", index.select("site1.*"));
+		assertEquals("[site1.gate, site2.door.a]", index.select("site1\\.gate|site2.*"));
+		assertEquals("[]", index.select("site3.*"));
+		assertEquals("[]", index.select("unknown"));
+	}
+
+	@Test
+	public void patternsAreEvaluatedOnlyOnce() {
+		NamespaceIndex<String> index = index("a.x", "a.y", "b.x");
+		String first = index.select("a\\..*");
+		assertEquals(1, combined.get());
+		assertSame(first, index.select("a\\..*"));
+		assertEquals(1, combined.get());
+	}
+
+	@Test
+	public void literalPrefixStopsAtTheFirstSpecialCharacter() {
+		assertEquals("site1.door.", NamespaceIndex.literalPrefix("site1\\.door\\..*"));
+		assertEquals("site1", NamespaceIndex.literalPrefix("site1.door"));
+		assertEquals("ab", NamespaceIndex.literalPrefix("ab+"));
+		//a quantifier may make the character before it optional
+		assertEquals("ab", NamespaceIndex.literalPrefix("abc?"));
+		assertEquals("a", NamespaceIndex.literalPrefix("ab*"));
+		assertEquals("a", NamespaceIndex.literalPrefix("ab{0,1}"));
+		assertEquals("site", NamespaceIndex.literalPrefix("site\\d"));
+		assertEquals("", NamespaceIndex.literalPrefix("a|b"));
+		assertEquals("", NamespaceIndex.literalPrefix("(?i)site"));
+		assertEquals("", NamespaceIndex.literalPrefix(".*"));
+	}
+
+	@Test
+	public void selectsAllNamespacesForPatternsWithoutPrefix() {
+		NamespaceIndex<String> index = index("x", "y");
+		assertEquals("[x, y]", index.select(".*"));
+		assertEquals("[x, y]", index.select("(x|y)"));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011-2015 Ant Kutschera
+ * 
+ * This file is part of Ant Kutschera's blog.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the Lesser GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Lesser GNU General Public License for more details.
+ * You should have received a copy of the Lesser GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.maxant.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelEvaluationTest {
+
+	public static class Input {
+		private final int value;
+		public Input(int value) {
+			this.value = value;
+		}
+		public int getValue() {
+			return value;
+		}
+		public boolean fail() {
+			throw new IllegalStateException("rule failed");
+		}
+	}
+
+	private final Logger log = Logger.getLogger(Engine.class.getName());
+	private Level level;
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		level = log.getLevel();
+		log.setLevel(Level.OFF);
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+		log.setLevel(level);
+	}
+
+	/** rule i matches values which are multiples of i, higher i first */
+	private static List<Rule> rules(int count) {
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 1; i <= count; i++){
+			rules.add(new Rule("R" + i, "input.value % " + i + " == 0", "O" + i, i, "ns"));
+		}
+		return rules;
+	}
+
+	@Test
+	public void bestOutcomeIsTheSameAsSequentially() throws Exception {
+		Engine sequential = new Engine(rules(500), true);
+		Engine parallel = new Engine.Builder(rules(500)).withParallelEvaluation(executor, 10).build();
+		for(int value = 1; value < 2000; value += 7){
+			Input input = new Input(value);
+			assertEquals(String.valueOf(value), sequential.getBestOutcome(input), parallel.getBestOutcome(input));
+			assertEquals(sequential.getMatchingRules(input), parallel.getMatchingRules(input));
+		}
+	}
+
+	@Test
+	public void noMatchIsReported() throws Exception {
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 0; i < 100; i++){
+			rules.add(new Rule("R" + i, "input.value < 0", "O" + i, i, "ns"));
+		}
+		Engine parallel = new Engine.Builder(rules).withParallelEvaluation(executor, 10).build();
+		try{
+			parallel.getBestOutcome(new Input(1));
+			fail("no rule matches");
+		}catch(NoMatchingRuleFoundException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void ruleFailingAfterTheBestMatchIsIgnored() throws Exception {
+		List<Rule> rules = rules(100);
+		rules.add(new Rule("failing", "input.fail()", "failing", 0, "ns"));
+		Engine parallel = new Engine.Builder(rules).withParallelEvaluation(executor, 10).build();
+		assertEquals("O7", parallel.getBestOutcome(new Input(7)));
+	}
+
+	@Test
+	public void ruleFailingBeforeAnyMatchFails() throws Exception {
+		List<Rule> rules = rules(100);
+		rules.add(new Rule("failing", "input.fail()", "failing", 1000, "ns"));
+		Engine parallel = new Engine.Builder(rules).withParallelEvaluation(executor, 10).build();
+		try{
+			parallel.getBestOutcome(new Input(7));
+			fail("the rule with the highest priority fails");
+		}catch(RuntimeException e){
+			//expected, as sequentially
+		}
+	}
+
+	@Test
+	public void rejectedChunksAreEvaluatedOnTheCallersThread() throws Exception {
+		Engine parallel = new Engine.Builder(rules(200)).withParallelEvaluation(executor, 10).build();
+		executor.shutdown();
+		assertEquals("O150", parallel.getBestOutcome(new Input(150)));
+	}
+}
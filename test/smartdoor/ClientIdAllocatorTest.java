@@ -0,0 +1,82 @@
+package smartdoor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ClientIdAllocatorTest {
+
+	@Test
+	public void allocatesTheLowestFreeId() {
+		ClientIdAllocator ids = new ClientIdAllocator();
+		assertArrayEquals(new int[]{1, 2, 3}, ids.allocate(3));
+		ids.claim(1);
+		ids.claim(3);
+		ids.release(1);
+		assertEquals(1, ids.allocate());
+		assertEquals(4, ids.allocate());
+		assertEquals(3, ids.getReservationCount());
+	}
+
+	@Test
+	public void skipsIdsWhichWereClaimedWithoutAllocation() {
+		ClientIdAllocator ids = new ClientIdAllocator();
+		ids.claim(1);
+		ids.claim(2);
+		assertEquals(3, ids.allocate());
+		assertEquals(1, ids.getReservationCount());
+	}
+
+	@Test
+	public void cancelsReservationsOnly() {
+		ClientIdAllocator ids = new ClientIdAllocator();
+		int claimed = ids.allocate();
+		ids.claim(claimed);
+		int reserved = ids.allocate();
+		assertFalse(ids.cancelReservation(claimed));
+		assertTrue(ids.cancelReservation(reserved));
+		assertFalse(ids.cancelReservation(reserved));
+		assertEquals(reserved, ids.allocate());
+	}
+
+	@Test
+	public void expiresReservationsWhichAreNotClaimed() throws InterruptedException {
+		ClientIdAllocator ids = new ClientIdAllocator(20);
+		assertEquals(1, ids.allocate());
+		assertEquals(2, ids.allocate());
+		ids.claim(2);
+		Thread.sleep(50);
+		assertEquals(0, ids.getReservationCount());
+		assertEquals(1, ids.allocate());
+		assertEquals(3, ids.allocate());
+	}
+
+	@Test
+	public void releasesOrCancelsInOneStep() {
+		ClientIdAllocator ids = new ClientIdAllocator();
+		int added = ids.allocate();
+		ids.claim(added);
+		int deletedBeforeAdded = ids.allocate();
+
+		assertTrue(ids.releaseOrCancel(added));
+		assertTrue(ids.releaseOrCancel(deletedBeforeAdded));
+		assertFalse(ids.releaseOrCancel(deletedBeforeAdded));
+		assertEquals(0, ids.getReservationCount());
+	}
+
+	@Test
+	public void keepsTheReservationOfANewClientWhenADeletedClientIsFreed() {
+		ClientIdAllocator ids = new ClientIdAllocator();
+		int id = ids.allocate();
+		ids.claim(id);
+		//the deleted client frees its ID, which a new client is allocated at once
+		ids.releaseOrCancel(id);
+		assertEquals(id, ids.allocate());
+		//so the reservation of the new client must survive until it is claimed
+		assertEquals(1, ids.getReservationCount());
+		assertEquals(id + 1, ids.allocate());
+	}
+}
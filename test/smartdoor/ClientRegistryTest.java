@@ -0,0 +1,121 @@
+package smartdoor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClientRegistryTest {
+
+	@Test
+	public void returnsChangesAcrossTheEndOfTheJournal() {
+		ClientRegistry registry = new ClientRegistry(4);
+		for(int id = 1; id <= 5; id++) {
+			registry.add(id, "c" + id, "A");
+		}
+		registry.add(3, "c3", "B");
+		registry.remove(2);
+		assertEquals(7, registry.getVersion());
+
+		//versions 4 to 7 are at indexes 0 to 3 of the ring, after 5, 6 and 7 overwrote 1 to 3
+		List<ClientRegistry.Change> changes = registry.getChangesSince(3);
+		assertEquals(4, changes.size());
+		long version = 4;
+		for(ClientRegistry.Change change : changes) {
+			assertEquals(version++, change.getVersion());
+		}
+		assertEquals(ClientRegistry.ChangeType.ADDED, changes.get(1).getType());
+		assertEquals(5, changes.get(1).getClient().getId());
+		assertEquals(ClientRegistry.ChangeType.UPDATED, changes.get(2).getType());
+		assertEquals("B", changes.get(2).getClient().getLocation());
+		assertEquals(ClientRegistry.ChangeType.REMOVED, changes.get(3).getType());
+		assertEquals(2, changes.get(3).getClient().getId());
+
+		assertEquals(1, registry.getChangesSince(6).size());
+		assertTrue(registry.getChangesSince(7).isEmpty());
+	}
+
+	@Test
+	public void asksForAResyncOnceChangesAreOverwritten() {
+		ClientRegistry registry = new ClientRegistry(4);
+		for(int id = 1; id <= 10; id++) {
+			registry.add(id, "c" + id, null);
+		}
+		assertNull(registry.getChangesSince(5));
+		assertEquals(4, registry.getChangesSince(6).size());
+		assertNull(registry.getChangesSince(-1));
+		assertNull(registry.getChangesSince(11));
+	}
+
+	@Test
+	public void refusesIdsAndNamesOfOtherClients() {
+		ClientRegistry registry = new ClientRegistry();
+		assertTrue(registry.add(1, "a", null));
+		assertFalse(registry.add(1, "b", null));
+		assertFalse(registry.add(2, "a", null));
+		assertEquals(1, registry.getVersion());
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void snapshotsKeepTheirVersionAndClients() {
+		ClientRegistry registry = new ClientRegistry();
+		registry.add(2, "b", "A");
+		registry.add(1, "a", "A");
+		ClientRegistry.Snapshot snapshot = registry.getSnapshot();
+		assertSame(snapshot, registry.getSnapshot());
+		registry.remove(1);
+
+		assertEquals(2, snapshot.getVersion());
+		assertEquals("[1, 2]", ids(snapshot.getClients()));
+		ClientRegistry.Snapshot next = registry.getSnapshot();
+		assertEquals(3, next.getVersion());
+		assertEquals("[2]", ids(next.getClients()));
+	}
+
+	@Test
+	public void pagesByIdAfterTheCursor() {
+		ClientRegistry registry = new ClientRegistry();
+		for(int id : new int[]{5, 1, 9, 3, 7}) {
+			registry.add(id, "c" + id, null);
+		}
+		ClientRegistry.Snapshot snapshot = registry.getSnapshot();
+		assertEquals("[1, 3]", ids(snapshot.page(Integer.MIN_VALUE, 2)));
+		assertEquals("[5, 7]", ids(snapshot.page(3, 2)));
+		assertEquals("[5, 7]", ids(snapshot.page(4, 2)));
+		assertEquals("[9]", ids(snapshot.page(7, 2)));
+		assertEquals("[]", ids(snapshot.page(9, 2)));
+		assertEquals("[]", ids(snapshot.page(1, 0)));
+	}
+
+	@Test
+	public void snapshotsOfALocationHoldOnlyItsClients() {
+		ClientRegistry registry = new ClientRegistry();
+		registry.add(1, "a", "A");
+		registry.add(2, "b", "B");
+		registry.add(3, "c", "A");
+		ClientRegistry.Snapshot atA = registry.getByLocation("A");
+		registry.add(3, "c", "B");
+
+		assertEquals(3, atA.getVersion());
+		assertEquals("[1, 3]", ids(atA.getClients()));
+		assertEquals("[1]", ids(registry.getByLocation("A").getClients()));
+		assertEquals("[2, 3]", ids(registry.getByLocation("B").getClients()));
+		assertTrue(registry.getByLocation("C").getClients().isEmpty());
+		assertEquals(Integer.valueOf(2), registry.getLocationCounts().get("B"));
+	}
+
+	private static String ids(List<ClientRegistry.Client> clients) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for(ClientRegistry.Client c : clients) {
+			ids.add(c.getId());
+		}
+		return ids.toString();
+	}
+}
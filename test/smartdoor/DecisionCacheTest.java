@@ -0,0 +1,91 @@
+package smartdoor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DecisionCacheTest {
+
+	@Test
+	public void returnsDecisionsOfTheSameVersionOnly() {
+		DecisionCache cache = new DecisionCache(10, 0);
+		cache.put("Alice", "Mustermann", 1, "Whitelist");
+		assertEquals("Whitelist", cache.get("Alice", "Mustermann", 1).getOutcome());
+		assertNull(cache.get("Alice", "Mustermann", 2));
+		assertNull(cache.get("Alice", null, 1));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void cachesThatNoRuleMatched() {
+		DecisionCache cache = new DecisionCache(10, 0);
+		cache.put("Bob", null, 1, null);
+		DecisionCache.Decision decision = cache.get("Bob", null, 1);
+		assertNotNull(decision);
+		assertNull(decision.getOutcome());
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedEntry() {
+		DecisionCache cache = new DecisionCache(3, 0);
+		cache.put("a", null, 1, "A");
+		cache.put("b", null, 1, "B");
+		cache.put("c", null, 1, "C");
+		//reading a makes b the least recently used entry
+		assertNotNull(cache.get("a", null, 1));
+		cache.put("d", null, 1, "D");
+		assertNull(cache.get("b", null, 1));
+		assertNotNull(cache.get("a", null, 1));
+		assertNotNull(cache.get("c", null, 1));
+		assertNotNull(cache.get("d", null, 1));
+		assertEquals(3, cache.getSize());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void readingAnEntryKeepsItFromBeingEvictedFromALargeCache() {
+		DecisionCache cache = new DecisionCache(10000, 0);
+		cache.put("p0", null, 1, "O");
+		for(int i = 0; i < 100000; i++) {
+			if(i % 100 == 0) {
+				assertNotNull(cache.get("p0", null, 1));
+			}
+			cache.put("q" + i, null, 1, "Q");
+		}
+		assertNotNull(cache.get("p0", null, 1));
+		assertEquals(10000, cache.getSize());
+		assertEquals(100001 - 10000, cache.getEvictions());
+	}
+
+	@Test
+	public void entriesInsertedAgainAfterInvalidateAreNotEvictedEarly() {
+		DecisionCache cache = new DecisionCache(1, 0);
+		cache.put("a", null, 1, "A");
+		cache.invalidate();
+		assertEquals(0, cache.getSize());
+		cache.put("a", null, 2, "A2");
+		cache.put("a", null, 2, "A2");
+		assertEquals("A2", cache.get("a", null, 2).getOutcome());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void expiredEntriesAreMisses() throws InterruptedException {
+		DecisionCache cache = new DecisionCache(10, 20);
+		cache.put("a", null, 1, "A");
+		assertNotNull(cache.get("a", null, 1));
+		Thread.sleep(50);
+		assertNull(cache.get("a", null, 1));
+	}
+
+	@Test
+	public void sizeZeroDisablesTheCache() {
+		DecisionCache cache = new DecisionCache(0, 0);
+		cache.put("a", null, 1, "A");
+		assertNull(cache.get("a", null, 1));
+		assertEquals(0, cache.getSize());
+	}
+}
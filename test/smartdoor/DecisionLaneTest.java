@@ -0,0 +1,90 @@
+package smartdoor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ch.maxant.rules.NoMatchingRuleFoundException;
+
+public class DecisionLaneTest {
+
+	@Test
+	public void decidesOnTheLane() throws Exception {
+		DecisionLane lane = new DecisionLane(2, 4);
+		String thread = lane.decide(new Callable<String>() {
+			@Override
+			public String call() {
+				return Thread.currentThread().getName();
+			}
+		});
+		assertTrue(thread, thread.startsWith("decision-"));
+	}
+
+	@Test(expected = NoMatchingRuleFoundException.class)
+	public void throwsTheFailureOfTheDecision() throws Exception {
+		new DecisionLane(1, 1).decide(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				throw new NoMatchingRuleFoundException();
+			}
+		});
+	}
+
+	@Test
+	public void rejectsDecisionsOnceTheLaneIsFull() throws Exception {
+		final DecisionLane lane = new DecisionLane(1, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<Boolean> blocked = new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				started.countDown();
+				return release.await(10, TimeUnit.SECONDS);
+			}
+		};
+		ExecutorService doors = Executors.newFixedThreadPool(2);
+		try {
+			//one decision runs, and one waits for the thread of the lane
+			Future<Boolean> running = doors.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return lane.decide(blocked);
+				}
+			});
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<Boolean> queued = doors.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return lane.decide(blocked);
+				}
+			});
+			for(long end = System.currentTimeMillis() + 10000; lane.getWaiting() == 0 && System.currentTimeMillis() < end;) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, lane.getWaiting());
+			try {
+				lane.decide(blocked);
+				fail("the lane is full");
+			} catch (RejectedExecutionException e) {
+				assertEquals(1, lane.getRejected());
+			}
+
+			release.countDown();
+			assertTrue(running.get(10, TimeUnit.SECONDS));
+			assertTrue(queued.get(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			doors.shutdown();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package smartdoor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PropertyCoalescerTest {
+
+	/** Records written values and fails the names it is told to */
+	private static final class Writer implements PropertyCoalescer.PropertyWriter {
+		private final Map<String, Object> Written = new LinkedHashMap<String, Object>();
+		private String Failing;
+
+		@Override
+		public void write(String name, Object value) throws Exception {
+			if(name.equals(Failing)) {
+				throw new Exception("unavailable");
+			}
+			Written.put(name, value);
+		}
+	}
+
+	@Test
+	public void writesOnlyTheLatestValue() {
+		PropertyCoalescer coalescer = new PropertyCoalescer();
+		Writer writer = new Writer();
+		coalescer.set("Count", 1);
+		coalescer.set("Count", 2);
+		coalescer.set("Name", null);
+		assertEquals(2, coalescer.flush(writer));
+		assertEquals(2, writer.Written.get("Count"));
+		assertEquals(null, writer.Written.get("Name"));
+		assertEquals(0, coalescer.flush(writer));
+		assertEquals(3, coalescer.getRequested());
+		assertEquals(2, coalescer.getWritten());
+		assertEquals(1, coalescer.getSaved());
+	}
+
+	@Test
+	public void keepsAValueWhichCouldNotBeWritten() {
+		PropertyCoalescer coalescer = new PropertyCoalescer();
+		Writer writer = new Writer();
+		writer.Failing = "Count";
+		coalescer.set("Count", 1);
+		assertEquals(0, coalescer.flush(writer));
+		assertEquals(0, coalescer.getWritten());
+		assertEquals(0, coalescer.getSaved());
+
+		writer.Failing = null;
+		assertEquals(1, coalescer.flush(writer));
+		assertEquals(1, writer.Written.get("Count"));
+		assertEquals(1, coalescer.getWritten());
+		assertEquals(0, coalescer.getSaved());
+	}
+
+	@Test
+	public void aNewerValueWinsOverOneWhichCouldNotBeWritten() {
+		PropertyCoalescer coalescer = new PropertyCoalescer();
+		final PropertyCoalescer target = coalescer;
+		coalescer.set("Count", 1);
+		//a newer value is set while the old one is being written, and the write fails
+		coalescer.flush(new PropertyCoalescer.PropertyWriter() {
+			@Override
+			public void write(String name, Object value) throws Exception {
+				target.set(name, 2);
+				throw new Exception("unavailable");
+			}
+		});
+		Writer writer = new Writer();
+		assertEquals(1, coalescer.flush(writer));
+		assertEquals(2, writer.Written.get("Count"));
+		assertEquals(1, coalescer.getSaved());
+	}
+}
@@ -0,0 +1,28 @@
+package smartdoor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ch.maxant.rules.NoMatchingRuleFoundException;
+
+public class RuleEngineTest {
+
+	@Test
+	public void decidesSingleWordNamesLikeTheBatch() throws Exception {
+		RuleEngine engine = new RuleEngine();
+		assertEquals("Whitelist", engine.checkRules("Alice"));
+		try {
+			engine.checkRules("Bob");
+			fail("no rule matches Bob");
+		} catch (NoMatchingRuleFoundException e) {
+			//expected
+		}
+		assertEquals(Arrays.asList("Whitelist", null, "Surname", null),
+				new RuleEngine().checkRulesBatch(Arrays.asList("Alice", "Bob", "Max Mustermann", "Max ")));
+		assertEquals(Arrays.asList("Whitelist", null), engine.checkRulesBatch(Arrays.asList("Alice", "Bob")));
+	}
+}
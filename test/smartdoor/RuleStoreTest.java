@@ -0,0 +1,205 @@
+package smartdoor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RuleStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recoversAllChangesFromTheLog() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		assertTrue(store.recover().isEmpty());
+		assertFalse(store.existed());
+		store.appendAdd("A", "a");
+		store.appendAdd("B", "b");
+		store.appendAdd("C", "c");
+		store.appendReplace("A", "a2");
+		store.appendRemove("B");
+		store.close();
+
+		store = new RuleStore(dir);
+		Map<String, String> rules = store.recover();
+		assertTrue(store.existed());
+		assertEquals(Arrays.asList("A", "C"), Arrays.asList(rules.keySet().toArray()));
+		assertEquals("a2", rules.get("A"));
+		assertEquals("c", rules.get("C"));
+		assertEquals(5, store.getRecoveredLogRecords());
+		store.close();
+	}
+
+	@Test
+	public void cutsOffATornRecordAndKeepsAppending() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		store.recover();
+		store.appendAdd("A", "a");
+		store.appendAdd("B", "b");
+		store.close();
+
+		File log = new File(dir, "rules.log");
+		long intact = log.length();
+		RandomAccessFile file = new RandomAccessFile(log, "rw");
+		try {
+			//header of a record whose payload never made it to disk
+			file.seek(intact);
+			file.writeInt(100);
+			file.writeInt(12345);
+			file.write(new byte[]{1, 2, 3});
+		} finally {
+			file.close();
+		}
+
+		store = new RuleStore(dir);
+		assertEquals(2, store.recover().size());
+		assertEquals(intact, log.length());
+		store.appendAdd("C", "c");
+		store.close();
+
+		store = new RuleStore(dir);
+		assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(store.recover().keySet().toArray()));
+		store.close();
+	}
+
+	@Test
+	public void ignoresACorruptRecordAndAllAfterIt() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		store.recover();
+		store.appendAdd("A", "a");
+		store.appendAdd("B", "b");
+		store.close();
+
+		File log = new File(dir, "rules.log");
+		RandomAccessFile file = new RandomAccessFile(log, "rw");
+		try {
+			//flip the last byte of the expression of B, so its checksum no longer matches
+			file.seek(log.length() - 1);
+			file.writeByte('x');
+		} finally {
+			file.close();
+		}
+
+		store = new RuleStore(dir);
+		assertEquals(Arrays.asList("A"), Arrays.asList(store.recover().keySet().toArray()));
+		store.close();
+	}
+
+	@Test
+	public void recoversFromSnapshotAndLogAfterCompaction() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		store.recover();
+		store.appendAdd("A", "a");
+		store.appendAdd("B", "b");
+		store.compact();
+		store.appendRemove("A");
+		store.appendAdd("C", "c");
+		//compacting twice on the open store replaces the log and the snapshot again
+		store.compact();
+		store.appendAdd("D", "d");
+		store.close();
+
+		assertFalse(new File(dir, "rules.snapshot.tmp").exists());
+		assertFalse(new File(dir, "rules.log.tmp").exists());
+		store = new RuleStore(dir);
+		Map<String, String> rules = store.recover();
+		assertEquals(Arrays.asList("B", "C", "D"), Arrays.asList(rules.keySet().toArray()));
+		assertEquals(2, store.getRecoveredSnapshotRules());
+		assertEquals(1, store.getRecoveredLogRecords());
+		store.close();
+	}
+
+	@Test
+	public void ignoresALogOfAnOlderGeneration() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		store.recover();
+		store.appendAdd("A", "a");
+		store.close();
+		File log = new File(dir, "rules.log");
+		byte[] oldLog = java.nio.file.Files.readAllBytes(log.toPath());
+
+		store = new RuleStore(dir);
+		store.recover();
+		store.compact();
+		store.appendRemove("A");
+		store.close();
+		//as if the crash happened after the snapshot was renamed, but before the log was replaced
+		java.nio.file.Files.write(log.toPath(), oldLog);
+
+		store = new RuleStore(dir);
+		Map<String, String> rules = store.recover();
+		assertEquals(Arrays.asList("A"), Arrays.asList(rules.keySet().toArray()));
+		assertEquals(0, store.getRecoveredLogRecords());
+		store.close();
+	}
+
+	@Test
+	public void appendsNothingToALogWhichCouldNotBeReplaced() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		store.recover();
+		store.appendAdd("A", "a");
+
+		//the new log cannot be renamed over a directory, which is only noticed after the snapshot was renamed
+		File log = new File(dir, "rules.log");
+		assertTrue(log.delete());
+		assertTrue(new File(log, "blocked").mkdirs());
+		try {
+			store.compact();
+			fail("the log cannot be replaced");
+		} catch(IOException e) {
+			//expected
+		}
+		try {
+			store.appendAdd("B", "b");
+			fail("the change must not be appended to the old log");
+		} catch(IOException e) {
+			//expected
+		}
+
+		assertTrue(new File(log, "blocked").delete());
+		assertTrue(log.delete());
+		store.appendAdd("C", "c");
+		store.close();
+
+		store = new RuleStore(dir);
+		assertEquals(Arrays.asList("A", "C"), Arrays.asList(store.recover().keySet().toArray()));
+		assertEquals(1, store.getRecoveredLogRecords());
+		store.close();
+	}
+
+	@Test
+	public void ruleEngineSkipsRecoveredRulesWhichDoNotCompile() throws IOException {
+		File dir = folder.getRoot();
+		RuleStore store = new RuleStore(dir);
+		store.recover();
+		store.appendAdd("Whitelist", "input.PersonName==\"Alice\"");
+		store.appendAdd("Broken", "input.PersonName==");
+		store.appendAdd("Surname", "input.PersonSurname==\"Mustermann\"");
+		store.close();
+
+		store = new RuleStore(dir);
+		RuleEngine engine = new RuleEngine(store);
+		assertEquals(2, engine.getSnapshot().getRules().size());
+		assertEquals("Whitelist", engine.getSnapshot().getRules().get(0).getName());
+		assertEquals("Surname", engine.getSnapshot().getRules().get(1).getName());
+		store.close();
+	}
+}